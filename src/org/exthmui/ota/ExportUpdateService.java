@@ -22,16 +22,21 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
-import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import org.exthmui.ota.misc.FileUtils;
+import org.exthmui.ota.misc.HashUtils;
 
 import androidx.core.app.NotificationCompat;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
 
 public class ExportUpdateService extends Service {
@@ -40,6 +45,9 @@ public class ExportUpdateService extends Service {
     public static final String ACTION_STOP_EXPORTING = "stop_exporting";
     public static final String EXTRA_SOURCE_FILE = "source_file";
     public static final String EXTRA_DEST_FILE = "dest_file";
+    public static final String EXTRA_HASH = "hash";
+    public static final String EXTRA_HASH_ALGORITHM = "hash_algorithm";
+    private static final String SHA256_FILE_EXT = ".sha256";
     private static final String TAG = "ExportUpdateService";
     private static final int NOTIFICATION_ID = 16;
     private static final String EXPORT_NOTIFICATION_CHANNEL =
@@ -66,7 +74,9 @@ public class ExportUpdateService extends Service {
             mIsExporting = true;
             File source = (File) intent.getSerializableExtra(EXTRA_SOURCE_FILE);
             File destination = (File) intent.getSerializableExtra(EXTRA_DEST_FILE);
-            startExporting(source, destination);
+            String hash = intent.getStringExtra(EXTRA_HASH);
+            String hashAlgorithm = intent.getStringExtra(EXTRA_HASH_ALGORITHM);
+            startExporting(source, destination, hash, hashAlgorithm);
         } else if (ACTION_STOP_EXPORTING.equals(intent.getAction())) {
             if (mIsExporting) {
                 mExportThread.interrupt();
@@ -90,7 +100,8 @@ public class ExportUpdateService extends Service {
         return START_NOT_STICKY;
     }
 
-    private void startExporting(File source, File destination) {
+    private void startExporting(File source, File destination, String hash,
+                                String hashAlgorithm) {
         NotificationManager notificationManager =
                 (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         NotificationChannel notificationChannel = new NotificationChannel(
@@ -112,19 +123,12 @@ public class ExportUpdateService extends Service {
                 getStopPendingIntent());
 
         FileUtils.ProgressCallBack progressCallBack = new FileUtils.ProgressCallBack() {
-            private long mLastUpdate = -1;
-
             @Override
             public void update(int progress) {
-                long now = SystemClock.elapsedRealtime();
-                if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                    String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-                    notificationStyle.setSummaryText(percent);
-                    notificationBuilder.setProgress(100, progress, false);
-                    notificationManager.notify(NOTIFICATION_ID,
-                            notificationBuilder.build());
-                    mLastUpdate = now;
-                }
+                String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
+                notificationStyle.setSummaryText(percent);
+                notificationBuilder.setProgress(100, progress, false);
+                notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
             }
         };
 
@@ -157,8 +161,8 @@ public class ExportUpdateService extends Service {
             stopForeground(STOP_FOREGROUND_DETACH);
         };
 
-        mExportRunnable = new ExportRunnable(source, destination, progressCallBack,
-                runnableComplete, runnableFailed);
+        mExportRunnable = new ExportRunnable(source, destination, hash, hashAlgorithm,
+                progressCallBack, runnableComplete, runnableFailed);
         mExportThread = new Thread(mExportRunnable);
         mExportThread.start();
     }
@@ -172,15 +176,19 @@ public class ExportUpdateService extends Service {
     private class ExportRunnable implements Runnable {
         private File mSource;
         private File mDestination;
+        private String mHash;
+        private String mHashAlgorithm;
         private FileUtils.ProgressCallBack mProgressCallBack;
         private Runnable mRunnableComplete;
         private Runnable mRunnableFailed;
 
-        private ExportRunnable(File source, File destination,
+        private ExportRunnable(File source, File destination, String hash, String hashAlgorithm,
                                FileUtils.ProgressCallBack progressCallBack,
                                Runnable runnableComplete, Runnable runnableFailed) {
             mSource = source;
             mDestination = destination;
+            mHash = hash;
+            mHashAlgorithm = hashAlgorithm;
             mProgressCallBack = progressCallBack;
             mRunnableComplete = runnableComplete;
             mRunnableFailed = runnableFailed;
@@ -189,7 +197,7 @@ public class ExportUpdateService extends Service {
         @Override
         public void run() {
             try {
-                FileUtils.copyFile(mSource, mDestination, mProgressCallBack);
+                exportAndVerify();
                 mIsExporting = false;
                 if (!mExportThread.isInterrupted()) {
                     Log.d(TAG, "Completed");
@@ -197,6 +205,9 @@ public class ExportUpdateService extends Service {
                 } else {
                     Log.d(TAG, "Aborted");
                 }
+            } catch (InterruptedIOException e) {
+                mIsExporting = false;
+                Log.d(TAG, "Aborted");
             } catch (IOException e) {
                 mIsExporting = false;
                 Log.e(TAG, "Could not copy file", e);
@@ -206,8 +217,49 @@ public class ExportUpdateService extends Service {
             }
         }
 
+        /**
+         * Copy the update and hash the data as it's copied, so that the copy can be
+         * verified without reading it again.
+         */
+        private void exportAndVerify() throws IOException {
+            MessageDigest sha256;
+            MessageDigest expected = null;
+            try {
+                sha256 = MessageDigest.getInstance(HashUtils.SHA_256);
+                if (mHash != null) {
+                    String algorithm = HashUtils.getAlgorithm(mHashAlgorithm, mHash);
+                    if (!HashUtils.SHA_256.equals(algorithm)) {
+                        expected = MessageDigest.getInstance(algorithm);
+                    }
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+
+            MessageDigest[] digests = expected != null ?
+                    new MessageDigest[]{sha256, expected} : new MessageDigest[]{sha256};
+            FileUtils.copyFile(mSource, mDestination, FileUtils.DEFAULT_CHUNK_SIZE,
+                    mProgressCallBack, digests);
+
+            String sha256Hash = HashUtils.toHex(sha256.digest());
+            String hash = expected != null ? HashUtils.toHex(expected.digest()) : sha256Hash;
+            if (mHash != null && !mHash.equalsIgnoreCase(hash)) {
+                mDestination.delete();
+                throw new IOException("The copy doesn't match the hash of the update");
+            }
+
+            // In the format of sha256sum, so that the copy can be checked anywhere
+            File sidecar = new File(mDestination.getAbsolutePath() + SHA256_FILE_EXT);
+            try (FileOutputStream outputStream = new FileOutputStream(sidecar)) {
+                String line = sha256Hash + "  " + mDestination.getName() + "\n";
+                outputStream.write(line.getBytes(StandardCharsets.UTF_8));
+            }
+            Log.d(TAG, "Exported and verified " + mDestination);
+        }
+
         private void cleanUp() {
             mDestination.delete();
+            new File(mDestination.getAbsolutePath() + SHA256_FILE_EXT).delete();
         }
     }
 }
@@ -30,7 +30,7 @@ import androidx.core.app.NotificationCompat;
 import androidx.preference.PreferenceManager;
 
 import org.exthmui.ota.misc.Constants;
-import org.exthmui.ota.misc.Utils;
+import org.exthmui.ota.misc.DownloadsCleaner;
 
 public class UpdaterReceiver extends BroadcastReceiver {
 
@@ -94,7 +94,7 @@ public class UpdaterReceiver extends BroadcastReceiver {
                 showUpdateFailedNotification(context);
             }
 
-            Utils.cleanupDownloadsDir(context);
+            DownloadsCleaner.cleanupAsync(context, goAsync());
         }
     }
 }
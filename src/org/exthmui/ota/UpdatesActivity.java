@@ -27,6 +27,8 @@ import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -53,10 +55,9 @@ import androidx.recyclerview.widget.SimpleItemAnimator;
 import com.google.android.material.snackbar.Snackbar;
 
 import org.exthmui.ota.misc.FetchChangelog;
-import org.json.JSONException;
 import org.exthmui.ota.controller.UpdaterController;
 import org.exthmui.ota.controller.UpdaterService;
-import org.exthmui.ota.download.DownloadClient;
+import org.exthmui.ota.misc.ManifestFetcher;
 import org.exthmui.ota.misc.Constants;
 import org.exthmui.ota.misc.Utils;
 import org.exthmui.ota.model.UpdateInfo;
@@ -67,7 +68,6 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.UUID;
 
 public class UpdatesActivity extends UpdatesListActivity {
 
@@ -93,6 +93,9 @@ public class UpdatesActivity extends UpdatesListActivity {
 
     private SharedPreferences sharedPref;
 
+    // Only the first time the updates are shown tells how long the startup took
+    private static boolean sStartupLogged;
+
     private ServiceConnection mConnection = new ServiceConnection() {
 
         @Override
@@ -100,8 +103,20 @@ public class UpdatesActivity extends UpdatesListActivity {
                                        IBinder service) {
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
-            mAdapter.setUpdaterController(mUpdaterService.getUpdaterController());
-            getUpdatesList();
+            UpdaterController controller = mUpdaterService.getUpdaterController();
+            controller.runWhenReady(() -> {
+                if (mUpdaterService == null) {
+                    return;
+                }
+                mAdapter.setUpdaterController(controller);
+                getUpdatesList();
+                if (!sStartupLogged) {
+                    sStartupLogged = true;
+                    Log.d(TAG, "Updates shown " + (SystemClock.elapsedRealtime() -
+                            Process.getStartElapsedRealtime()) +
+                            " ms after the process started");
+                }
+            });
         }
 
         @Override
@@ -285,17 +300,19 @@ public class UpdatesActivity extends UpdatesListActivity {
     }
 
     private void loadUpdatesList(File jsonFile, boolean manualRefresh)
-            throws IOException, JSONException {
+            throws IOException {
         Log.d(TAG, "Adding remote updates");
         UpdaterController controller = mUpdaterService.getUpdaterController();
 
-        UpdateInfo newUpdate = Utils.parseJson(jsonFile, true);
-        boolean updateAvailable = newUpdate != null && controller.addUpdate(newUpdate);
+        List<UpdateInfo> newUpdates = Utils.parseJson(jsonFile, true);
+        controller.addUpdates(newUpdates);
 
-        if (newUpdate != null) {
-            isUpdateAvailable = Utils.isCurrentVersion(newUpdate);
-        } else {
-            isUpdateAvailable = false;
+        isUpdateAvailable = false;
+        for (UpdateInfo update : newUpdates) {
+            if (Utils.isCurrentVersion(update)) {
+                isUpdateAvailable = true;
+                break;
+            }
         }
 
         if (manualRefresh) {
@@ -316,27 +333,31 @@ public class UpdatesActivity extends UpdatesListActivity {
         List<String> updateIds = new ArrayList<>();
         List<UpdateInfo> sortedUpdates = controller.getUpdates();
         hideUpdates();
-        if (newUpdate != null && Utils.isCompatible(newUpdate) && !sortedUpdates.isEmpty()) {
+        if (!newUpdates.isEmpty() && !sortedUpdates.isEmpty()) {
             sortedUpdates.sort((u1, u2) -> Long.compare(u2.getTimestamp(), u1.getTimestamp()));
             for (UpdateInfo update : sortedUpdates) {
-                if (Utils.isCompatible(update)) {
-                    updateIds.add(update.getDownloadId());
-                    break; // Limit to 1
-                }
+                updateIds.add(update.getDownloadId());
             }
             mAdapter.setData(updateIds);
             mAdapter.notifyDataSetChanged();
         }
     }
 
+    /**
+     * The lists downloaded before the controller is ready are loaded once it is.
+     */
+    private boolean isControllerReady() {
+        return mUpdaterService != null && mUpdaterService.getUpdaterController().isReady();
+    }
+
     private void getUpdatesList() {
         File jsonFile = Utils.getCachedUpdateList(this);
         if (jsonFile.exists()) {
             try {
-                if (mUpdaterService != null)
+                if (isControllerReady())
                     loadUpdatesList(jsonFile, false);
                 Log.d(TAG, "Cached list parsed");
-            } catch (IOException | JSONException e) {
+            } catch (IOException e) {
                 Log.e(TAG, "Error while parsing json list", e);
             }
         } else {
@@ -344,9 +365,10 @@ public class UpdatesActivity extends UpdatesListActivity {
         }
     }
 
-    private void processNewJson(File json, File jsonNew, boolean manualRefresh) {
+    private void processNewJson(ManifestFetcher fetcher, File json, File jsonNew,
+                                boolean manualRefresh) {
         try {
-            if (mUpdaterService != null)
+            if (isControllerReady())
                 loadUpdatesList(jsonNew, manualRefresh);
             if (json.exists() && Utils.isUpdateCheckEnabled(this) &&
                     Utils.checkForNewUpdates(json, jsonNew)) {
@@ -354,20 +376,30 @@ public class UpdatesActivity extends UpdatesListActivity {
             }
             // In case we set a one-shot check because of a previous failure
             UpdatesCheckReceiver.cancelUpdatesCheck(this);
-            jsonNew.renameTo(json);
-        } catch (IOException | JSONException e) {
+            fetcher.commit();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read json", e);
+            showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+        }
+    }
+
+    private void processCachedJson(boolean manualRefresh) {
+        try {
+            if (isControllerReady())
+                loadUpdatesList(Utils.getCachedUpdateList(this), manualRefresh);
+            // In case we set a one-shot check because of a previous failure
+            UpdatesCheckReceiver.cancelUpdatesCheck(this);
+        } catch (IOException e) {
             Log.e(TAG, "Could not read json", e);
             showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
         }
     }
 
     private void downloadUpdatesList(final boolean manualRefresh) {
-        final File jsonFile = Utils.getCachedUpdateList(this);
-        final File jsonFileTmp = new File(jsonFile.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL();
-        Log.d(TAG, "Checking " + url);
+        Log.d(TAG, "Checking " + Utils.getServerURL());
 
-        DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+        final ManifestFetcher fetcher = new ManifestFetcher(this);
+        ManifestFetcher.Callback callback = new ManifestFetcher.Callback() {
             @Override
             public void onFailure(final boolean cancelled) {
                 Log.e(TAG, "Could not download updates list");
@@ -380,35 +412,32 @@ public class UpdatesActivity extends UpdatesListActivity {
             }
 
             @Override
-            public void onResponse(int statusCode, String url,
-                                   DownloadClient.Headers headers) {
+            public void onNotModified() {
+                runOnUiThread(() -> {
+                    Log.d(TAG, "List not modified");
+                    processCachedJson(manualRefresh);
+                    refreshAnimationStop();
+                });
             }
 
             @Override
-            public void onSuccess(File destination) {
+            public void onSuccess(File json, File jsonNew) {
                 runOnUiThread(() -> {
                     Log.d(TAG, "List downloaded");
-                    processNewJson(jsonFile, jsonFileTmp, manualRefresh);
+                    processNewJson(fetcher, json, jsonNew, manualRefresh);
                     refreshAnimationStop();
                 });
             }
         };
 
-        final DownloadClient downloadClient;
+        refreshAnimationStart();
         try {
-            downloadClient = new DownloadClient.Builder()
-                    .setUrl(url)
-                    .setDestination(jsonFileTmp)
-                    .setDownloadCallback(callback)
-                    .build();
+            fetcher.fetch(callback);
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
             showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
-            return;
+            refreshAnimationStop();
         }
-
-        refreshAnimationStart();
-        downloadClient.start();
     }
 
     private void handleDownloadStatusChange(String downloadId) {
@@ -469,10 +498,16 @@ public class UpdatesActivity extends UpdatesListActivity {
         Spinner autoCheckInterval =
                 view.findViewById(R.id.preferences_auto_updates_check_interval);
         Switch dataWarning = view.findViewById(R.id.preferences_mobile_data_warning);
+        Switch abStreaming = view.findViewById(R.id.preferences_ab_streaming);
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         autoCheckInterval.setSelection(Utils.getUpdateCheckSetting(this));
         dataWarning.setChecked(prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true));
+        if (Utils.isABDevice()) {
+            abStreaming.setChecked(prefs.getBoolean(Constants.PREF_AB_STREAMING, false));
+        } else {
+            abStreaming.setVisibility(View.GONE);
+        }
 
         new AlertDialog.Builder(this, R.style.AppTheme_AlertDialogStyle)
                 .setTitle(R.string.menu_preferences)
@@ -483,6 +518,7 @@ public class UpdatesActivity extends UpdatesListActivity {
                                     autoCheckInterval.getSelectedItemPosition())
                             .putBoolean(Constants.PREF_MOBILE_DATA_WARNING,
                                     dataWarning.isChecked())
+                            .putBoolean(Constants.PREF_AB_STREAMING, abStreaming.isChecked())
                             .apply();
 
                     if (Utils.isUpdateCheckEnabled(this)) {
@@ -28,15 +28,14 @@ import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
-import org.json.JSONException;
-import org.exthmui.ota.download.DownloadClient;
+import org.exthmui.ota.misc.DownloadsCleaner;
 import org.exthmui.ota.misc.FetchChangelog;
+import org.exthmui.ota.misc.ManifestFetcher;
 import org.exthmui.ota.misc.Utils;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
-import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 
 public class UpdatesCheckReceiver extends BroadcastReceiver {
@@ -128,7 +127,7 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(final Context context, Intent intent) {
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            Utils.cleanupDownloadsDir(context);
+            DownloadsCleaner.cleanupAsync(context, goAsync());
         }
 
         if (!Utils.isUpdateCheckEnabled(context)) {
@@ -146,10 +145,8 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
             return;
         }
 
-        final File json = Utils.getCachedUpdateList(context);
-        final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL();
-        DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+        final ManifestFetcher fetcher = new ManifestFetcher(context);
+        ManifestFetcher.Callback callback = new ManifestFetcher.Callback() {
             @Override
             public void onFailure(boolean cancelled) {
                 Log.e(TAG, "Could not download updates list, scheduling new check");
@@ -157,12 +154,13 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
             }
 
             @Override
-            public void onResponse(int statusCode, String url,
-                                   DownloadClient.Headers headers) {
+            public void onNotModified() {
+                // Nothing new to notify about
+                cancelUpdatesCheck(context);
             }
 
             @Override
-            public void onSuccess(File destination) {
+            public void onSuccess(File json, File jsonNew) {
                 try {
                     if (json.exists() && Utils.checkForNewUpdates(json, jsonNew)) {
                         // Download the changelog BEFORE the user is going to click the notification
@@ -175,10 +173,10 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
                         showNotification(context);
                         updateRepeatingUpdatesCheck(context);
                     }
-                    jsonNew.renameTo(json);
+                    fetcher.commit();
                     // In case we set a one-shot check because of a previous failure
                     cancelUpdatesCheck(context);
-                } catch (IOException | JSONException | InterruptedException | ExecutionException e) {
+                } catch (IOException | InterruptedException | ExecutionException e) {
                     Log.e(TAG, "Could not parse list, scheduling new check", e);
                     scheduleUpdatesCheck(context);
                 }
@@ -186,12 +184,7 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         };
 
         try {
-            DownloadClient downloadClient = new DownloadClient.Builder()
-                    .setUrl(url)
-                    .setDestination(jsonNew)
-                    .setDownloadCallback(callback)
-                    .build();
-            downloadClient.start();
+            fetcher.fetch(callback);
         } catch (IOException e) {
             Log.e(TAG, "Could not fetch list, scheduling new check", e);
             scheduleUpdatesCheck(context);
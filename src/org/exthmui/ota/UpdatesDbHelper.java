@@ -31,7 +31,9 @@ import java.util.List;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 8;
+    // The oldest version that can be upgraded without losing the rows
+    private static final int OLDEST_MIGRATED_VERSION = 4;
     private static final String DATABASE_NAME = "updates.db";
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + UpdateEntry.TABLE_NAME + " (" +
@@ -42,25 +44,76 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
                     UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
-                    UpdateEntry.COLUMN_NAME_HASH + " TEXT)";
+                    UpdateEntry.COLUMN_NAME_HASH + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP + " INTEGER DEFAULT 0," +
+                    UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES + " INTEGER DEFAULT 0," +
+                    UpdateEntry.COLUMN_NAME_HASH_ALGORITHM + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_URL + " TEXT)";
+    // The list is sorted by timestamp, the cleanup and the checks filter by it
+    private static final String SQL_CREATE_INDEX_TIMESTAMP =
+            "CREATE INDEX IF NOT EXISTS " + UpdateEntry.INDEX_TIMESTAMP + " ON " +
+                    UpdateEntry.TABLE_NAME + " (" + UpdateEntry.COLUMN_NAME_TIMESTAMP + ")";
+    private static final String SQL_CREATE_INDEX_STATUS =
+            "CREATE INDEX IF NOT EXISTS " + UpdateEntry.INDEX_STATUS + " ON " +
+                    UpdateEntry.TABLE_NAME + " (" + UpdateEntry.COLUMN_NAME_STATUS + ", " +
+                    UpdateEntry.COLUMN_NAME_TIMESTAMP + ")";
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
 
     public UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Writes don't block the reads and are cheaper to commit
+        setWriteAheadLoggingEnabled(true);
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_INDEX_TIMESTAMP);
+        db.execSQL(SQL_CREATE_INDEX_STATUS);
     }
 
+    /**
+     * Upgrade one version at a time, keeping the rows, so that the packages being
+     * downloaded aren't forgotten and deleted.
+     */
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < OLDEST_MIGRATED_VERSION) {
+            recreate(db);
+            return;
+        }
+        for (int version = oldVersion; version < newVersion; version++) {
+            switch (version) {
+                case 4:
+                    addColumn(db, UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP, "INTEGER DEFAULT 0");
+                    break;
+                case 5:
+                    addColumn(db, UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES, "INTEGER DEFAULT 0");
+                    break;
+                case 6:
+                    addColumn(db, UpdateEntry.COLUMN_NAME_HASH_ALGORITHM, "TEXT");
+                    addColumn(db, UpdateEntry.COLUMN_NAME_DOWNLOAD_URL, "TEXT");
+                    break;
+                case 7:
+                    db.execSQL(SQL_CREATE_INDEX_TIMESTAMP);
+                    db.execSQL(SQL_CREATE_INDEX_STATUS);
+                    break;
+            }
+        }
+    }
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // We don't know what the newer versions changed
+        recreate(db);
+    }
+
+    private void recreate(SQLiteDatabase db) {
         db.execSQL(SQL_DELETE_ENTRIES);
         onCreate(db);
     }
 
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+    private static void addColumn(SQLiteDatabase db, String column, String type) {
+        db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                column + " " + type);
     }
 
     public long addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
@@ -73,6 +126,10 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
         values.put(UpdateEntry.COLUMN_NAME_HASH, update.getHash());
+        values.put(UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP, update.getSourceTimestamp());
+        values.put(UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES, update.getDownloadedBytes());
+        values.put(UpdateEntry.COLUMN_NAME_HASH_ALGORITHM, update.getHashAlgorithm());
+        values.put(UpdateEntry.COLUMN_NAME_DOWNLOAD_URL, update.getDownloadUrl());
         return db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values, conflictAlgorithm);
     }
 
@@ -89,6 +146,15 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         changeUpdateStatus(selection, selectionArgs, update.getPersistentStatus());
     }
 
+    public void changeDownloadedBytes(Update update) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES, update.getDownloadedBytes());
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {update.getDownloadId()};
+        db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs);
+    }
+
     private void changeUpdateStatus(String selection, String[] selectionArgs,
                                     int status) {
         SQLiteDatabase db = getWritableDatabase();
@@ -98,46 +164,129 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
     }
 
     public List<Update> getUpdates() {
+        return getUpdates(null, null);
+    }
+
+    /**
+     * @param status the persistent status of the updates
+     */
+    public List<Update> getUpdates(int status) {
+        String selection = UpdateEntry.COLUMN_NAME_STATUS + " = ?";
+        String[] selectionArgs = {Integer.toString(status)};
+        return getUpdates(selection, selectionArgs);
+    }
+
+    public Update getUpdate(String downloadId) {
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {downloadId};
+        List<Update> updates = getUpdates(selection, selectionArgs);
+        return updates.isEmpty() ? null : updates.get(0);
+    }
+
+    private List<Update> getUpdates(String selection, String[] selectionArgs) {
         SQLiteDatabase db = getReadableDatabase();
-        String[] projection = {
+        String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
+        List<Update> updates = new ArrayList<>();
+        try (Cursor cursor = db.query(UpdateEntry.TABLE_NAME, UpdateMapper.PROJECTION,
+                selection, selectionArgs, null, null, sort)) {
+            if (cursor != null) {
+                UpdateMapper mapper = new UpdateMapper(cursor);
+                while (cursor.moveToNext()) {
+                    updates.add(mapper.map(cursor));
+                }
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * @return the paths of the updates newer than the given build, without reading
+     * anything else
+     */
+    public List<String> getUpdatePaths(long newerThan) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {UpdateEntry.COLUMN_NAME_PATH};
+        String selection = UpdateEntry.COLUMN_NAME_TIMESTAMP + " > ?";
+        String[] selectionArgs = {Long.toString(newerThan)};
+        List<String> paths = new ArrayList<>();
+        try (Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, null)) {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    paths.add(cursor.getString(0));
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Reads the updates from a cursor, the columns are looked up once per query.
+     */
+    private static class UpdateMapper {
+        static final String[] PROJECTION = {
                 UpdateEntry.COLUMN_NAME_PATH,
                 UpdateEntry.COLUMN_NAME_DOWNLOAD_ID,
                 UpdateEntry.COLUMN_NAME_TIMESTAMP,
                 UpdateEntry.COLUMN_NAME_VERSION,
                 UpdateEntry.COLUMN_NAME_STATUS,
                 UpdateEntry.COLUMN_NAME_SIZE,
-                UpdateEntry.COLUMN_NAME_HASH};
-        String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
-        Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, null, null,
-                null, null, sort);
-        List<Update> updates = new ArrayList<>();
-        if (cursor != null) {
-            while (cursor.moveToNext()) {
-                Update update = new Update();
-                int index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PATH);
-                update.setFile(new File(cursor.getString(index)));
-                update.setName(update.getFile().getName());
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID);
-                update.setDownloadId(cursor.getString(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_TIMESTAMP);
-                update.setTimestamp(cursor.getLong(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_VERSION);
-                update.setVersion(cursor.getString(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_STATUS);
-                update.setPersistentStatus(cursor.getInt(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
-                update.setFileSize(cursor.getLong(index));
-                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_HASH);
-                update.setHash(cursor.getString(index));
-                updates.add(update);
-            }
-            cursor.close();
+                UpdateEntry.COLUMN_NAME_HASH,
+                UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP,
+                UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES,
+                UpdateEntry.COLUMN_NAME_HASH_ALGORITHM,
+                UpdateEntry.COLUMN_NAME_DOWNLOAD_URL};
+
+        private final int mPath;
+        private final int mDownloadId;
+        private final int mTimestamp;
+        private final int mVersion;
+        private final int mStatus;
+        private final int mSize;
+        private final int mHash;
+        private final int mSourceTimestamp;
+        private final int mDownloadedBytes;
+        private final int mHashAlgorithm;
+        private final int mDownloadUrl;
+
+        UpdateMapper(Cursor cursor) {
+            mPath = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_PATH);
+            mDownloadId = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID);
+            mTimestamp = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_TIMESTAMP);
+            mVersion = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_VERSION);
+            mStatus = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_STATUS);
+            mSize = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_SIZE);
+            mHash = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_HASH);
+            mSourceTimestamp =
+                    cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_SOURCE_TIMESTAMP);
+            mDownloadedBytes =
+                    cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_DOWNLOADED_BYTES);
+            mHashAlgorithm = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_HASH_ALGORITHM);
+            mDownloadUrl = cursor.getColumnIndexOrThrow(UpdateEntry.COLUMN_NAME_DOWNLOAD_URL);
+        }
+
+        Update map(Cursor cursor) {
+            Update update = new Update();
+            update.setFile(new File(cursor.getString(mPath)));
+            update.setName(update.getFile().getName());
+            update.setDownloadId(cursor.getString(mDownloadId));
+            update.setTimestamp(cursor.getLong(mTimestamp));
+            update.setVersion(cursor.getString(mVersion));
+            update.setPersistentStatus(cursor.getInt(mStatus));
+            update.setFileSize(cursor.getLong(mSize));
+            update.setHash(cursor.getString(mHash));
+            update.setSourceTimestamp(cursor.getLong(mSourceTimestamp));
+            update.setDownloadedBytes(cursor.getLong(mDownloadedBytes));
+            update.setHashAlgorithm(cursor.getString(mHashAlgorithm));
+            update.setDownloadUrl(cursor.getString(mDownloadUrl));
+            return update;
         }
-        return updates;
     }
 
     public static class UpdateEntry implements BaseColumns {
         static final String TABLE_NAME = "updates";
+        static final String INDEX_TIMESTAMP = "updates_timestamp";
+        static final String INDEX_STATUS = "updates_status_timestamp";
         static final String COLUMN_NAME_STATUS = "status";
         static final String COLUMN_NAME_PATH = "path";
         static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
@@ -145,5 +294,9 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         static final String COLUMN_NAME_VERSION = "version";
         static final String COLUMN_NAME_SIZE = "size";
         static final String COLUMN_NAME_HASH = "hash";
+        static final String COLUMN_NAME_SOURCE_TIMESTAMP = "source_timestamp";
+        static final String COLUMN_NAME_DOWNLOADED_BYTES = "downloaded_bytes";
+        static final String COLUMN_NAME_HASH_ALGORITHM = "hash_algorithm";
+        static final String COLUMN_NAME_DOWNLOAD_URL = "download_url";
     }
 }
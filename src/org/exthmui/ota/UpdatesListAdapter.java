@@ -116,7 +116,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         final String downloadId = update.getDownloadId();
         if (mUpdaterController.isDownloading(downloadId)) {
             canDelete = true;
-            String downloaded = Utils.readableFileSize(update.getFile().length());
+            String downloaded = Utils.readableFileSize(update.getDownloadedBytes());
             String total = Utils.readableFileSize(update.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getProgress() / 100.f);
@@ -145,11 +145,12 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         } else if (mUpdaterController.isVerifyingUpdate(downloadId)) {
             setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, false);
             viewHolder.mProgressText.setText(R.string.list_verifying_update);
-            viewHolder.mProgressBar.setIndeterminate(true);
+            viewHolder.mProgressBar.setIndeterminate(update.getVerifyProgress() == 0);
+            viewHolder.mProgressBar.setProgress(update.getVerifyProgress());
         } else {
             canDelete = true;
             setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
-            String downloaded = Utils.readableFileSize(update.getFile().length());
+            String downloaded = Utils.readableFileSize(update.getDownloadedBytes());
             String total = Utils.readableFileSize(update.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getProgress() / 100.f);
@@ -160,9 +161,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         }
         viewHolder.mWhatsNew.setText(changelogData != null ? changelogData : "");
 
-        String fileSize = Utils.readableFileSize(update.getFileSize());
-        viewHolder.mBuildSize.setText(String
-                .format(mActivity.getResources().getString(R.string.update_size), fileSize));
+        viewHolder.mBuildSize.setText(getUpdateSize(update));
 
         viewHolder.itemView.setOnLongClickListener(getLongClickListener(update, canDelete,
                 viewHolder.mBuildDate));
@@ -171,6 +170,15 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         viewHolder.mBuildSize.setVisibility(View.VISIBLE);
     }
 
+    private String getUpdateSize(UpdateInfo update) {
+        String fileSize = Utils.readableFileSize(update.getFileSize());
+        if (update.getSavedBytes() > 0) {
+            return mActivity.getString(R.string.update_size_delta, fileSize,
+                    Utils.readableFileSize(update.getSavedBytes()));
+        }
+        return String.format(mActivity.getResources().getString(R.string.update_size), fileSize);
+    }
+
     private void handleNotActiveStatus(ViewHolder viewHolder, UpdateInfo update) {
         final String downloadId = update.getDownloadId();
         if (mUpdaterController.isWaitingForReboot(downloadId)) {
@@ -194,9 +202,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         }
         viewHolder.mWhatsNew.setText(changelogData != null ? changelogData : "");
 
-        String fileSize = Utils.readableFileSize(update.getFileSize());
-        viewHolder.mBuildSize.setText(String
-                .format(mActivity.getResources().getString(R.string.update_size), fileSize));
+        viewHolder.mBuildSize.setText(getUpdateSize(update));
 
         viewHolder.mProgressBar.setVisibility(View.INVISIBLE);
         viewHolder.mProgressText.setVisibility(View.INVISIBLE);
@@ -276,12 +282,21 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         notifyItemRangeChanged(position, getItemCount());
     }
 
+    private void startDownload(String downloadId) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        if (Utils.isABDevice() && preferences.getBoolean(Constants.PREF_AB_STREAMING, false)) {
+            Utils.triggerStreamingUpdate(mActivity, downloadId);
+        } else {
+            mUpdaterController.startDownload(downloadId);
+        }
+    }
+
     private void startDownloadWithWarning(final String downloadId) {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mActivity);
         boolean warn = preferences.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true);
         if (Utils.isOnWifiOrEthernet(mActivity) || !warn) {
             mActivity.findViewById(R.id.mobile_data_warning).setVisibility(View.GONE);
-            mUpdaterController.startDownload(downloadId);
+            startDownload(downloadId);
             return;
         }
 
@@ -303,7 +318,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                                         .apply();
                                 mActivity.supportInvalidateOptionsMenu();
                             }
-                            mUpdaterController.startDownload(downloadId);
+                            startDownload(downloadId);
                         })
                 .setNegativeButton(android.R.string.cancel, null)
                 .show();
@@ -330,7 +345,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 button.setEnabled(enabled);
                 UpdateInfo update = mUpdaterController.getUpdate(downloadId);
                 final boolean canInstall = Utils.canInstall(update) ||
-                        update.getFile().length() == update.getFileSize();
+                        update.getDownloadedBytes() == update.getFileSize();
                 clickListener = enabled ? view -> {
                     if (canInstall) {
                         mUpdaterController.resumeDownload(downloadId);
@@ -522,6 +537,8 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         intent.setAction(ExportUpdateService.ACTION_START_EXPORTING);
         intent.putExtra(ExportUpdateService.EXTRA_SOURCE_FILE, update.getFile());
         intent.putExtra(ExportUpdateService.EXTRA_DEST_FILE, dest);
+        intent.putExtra(ExportUpdateService.EXTRA_HASH, update.getHash());
+        intent.putExtra(ExportUpdateService.EXTRA_HASH_ALGORITHM, update.getHashAlgorithm());
         mActivity.startService(intent);
     }
 
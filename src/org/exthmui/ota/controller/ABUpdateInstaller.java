@@ -19,27 +19,29 @@ package org.exthmui.ota.controller;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemProperties;
 import android.os.UpdateEngine;
 import android.os.UpdateEngineCallback;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.exthmui.ota.download.HttpRangeSource;
 import org.exthmui.ota.misc.Constants;
 import org.exthmui.ota.misc.Utils;
+import org.exthmui.ota.misc.ZipReader;
 import org.exthmui.ota.model.Update;
 import org.exthmui.ota.model.UpdateStatus;
 
 import androidx.preference.PreferenceManager;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 class ABUpdateInstaller {
 
@@ -53,10 +55,13 @@ class ABUpdateInstaller {
 
     private final UpdaterController mUpdaterController;
     private final Context mContext;
-    private String mDownloadId;
+    private volatile String mDownloadId;
 
     private boolean mFinalizing;
     private int mProgress;
+    private volatile boolean mStreaming;
+    // Guarded by this
+    private boolean mPreparingStream;
 
     private final UpdateEngineCallback mUpdateEngineCallback = new UpdateEngineCallback() {
 
@@ -72,9 +77,10 @@ class ABUpdateInstaller {
             switch (status) {
                 case UpdateEngine.UpdateStatusConstants.DOWNLOADING:
                 case UpdateEngine.UpdateStatusConstants.FINALIZING: {
-                    if (update.getStatus() != UpdateStatus.INSTALLING) {
-                        update.setStatus(UpdateStatus.INSTALLING);
-                        mUpdaterController.notifyUpdateChange(mDownloadId);
+                    if (update.getStatus() != UpdateStatus.INSTALLING &&
+                            !mUpdaterController.setStatus(mDownloadId,
+                                    UpdateStatus.INSTALLING)) {
+                        break;
                     }
                     mProgress = Math.round(percent * 100);
                     mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(mProgress);
@@ -87,9 +93,9 @@ class ABUpdateInstaller {
                 case UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT: {
                     installationDone(true);
                     update.setInstallProgress(0);
-                    update.setStatus(UpdateStatus.INSTALLED);
-                    mUpdaterController.notifyUpdateChange(mDownloadId);
-                    mUpdaterController.deleteUpdate(mDownloadId);
+                    if (mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLED)) {
+                        mUpdaterController.deleteUpdate(mDownloadId);
+                    }
                 }
                 break;
 
@@ -108,8 +114,17 @@ class ABUpdateInstaller {
                 installationDone(false);
                 Update update = mUpdaterController.getActualUpdate(mDownloadId);
                 update.setInstallProgress(0);
-                update.setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(mDownloadId);
+                if (update.getSourceTimestamp() != 0) {
+                    Log.e(TAG, "Could not apply the incremental package, error " + errorCode);
+                    if (mStreaming && update.useFullPackage()) {
+                        installStreaming(mDownloadId);
+                        return;
+                    }
+                    if (mUpdaterController.fallBackToFullPackage(mDownloadId)) {
+                        return;
+                    }
+                }
+                mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLATION_FAILED);
             }
         }
     };
@@ -169,60 +184,133 @@ class ABUpdateInstaller {
         File file = mUpdaterController.getActualUpdate(mDownloadId).getFile();
         if (!file.exists()) {
             Log.e(TAG, "The given update doesn't exist");
-            mUpdaterController.getActualUpdate(downloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
-            mUpdaterController.notifyUpdateChange(downloadId);
+            mUpdaterController.setStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
+            return;
+        }
+
+        long sourceTimestamp = mUpdaterController.getActualUpdate(mDownloadId).getSourceTimestamp();
+        if (sourceTimestamp != 0 &&
+                sourceTimestamp != SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
+            Log.e(TAG, "The incremental package doesn't apply to the current build");
+            if (!mUpdaterController.fallBackToFullPackage(mDownloadId)) {
+                mUpdaterController.setStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
+            }
             return;
         }
 
         long offset;
         String[] headerKeyValuePairs;
-        try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null; ) {
-                    lines.add(line);
+        try (ZipReader zipReader = new ZipReader(file)) {
+            offset = Utils.getZipEntryOffset(zipReader, Constants.AB_PAYLOAD_BIN_PATH);
+            headerKeyValuePairs = readPayloadProperties(zipReader);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not prepare " + file, e);
+            mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLATION_FAILED);
+            return;
+        }
+
+        String zipFileUri = "file://" + file.getAbsolutePath();
+        mStreaming = false;
+        applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+    }
+
+    /**
+     * Let update_engine download the payload itself, without storing the package.
+     * Only the central directory and the payload properties are fetched here, the
+     * payload is verified by update_engine as it's applied.
+     */
+    void installStreaming(String downloadId) {
+        synchronized (this) {
+            if (isInstallingUpdate(mContext) || mPreparingStream) {
+                Log.e(TAG, "Already installing an update");
+                return;
+            }
+            if (!mUpdaterController.setStatus(downloadId, UpdateStatus.STARTING)) {
+                return;
+            }
+            mPreparingStream = true;
+            mDownloadId = downloadId;
+        }
+        Update update = mUpdaterController.getActualUpdate(downloadId);
+
+        final String url = update.getDownloadUrl();
+        BackgroundExecutor.NETWORK.execute(() -> {
+            try {
+                prepareStream(downloadId, url);
+            } finally {
+                synchronized (ABUpdateInstaller.this) {
+                    mPreparingStream = false;
                 }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
             }
-            zipFile.close();
+        });
+    }
+
+    private void prepareStream(String downloadId, String url) {
+        String payloadUrl;
+        long offset;
+        long size;
+        String[] headerKeyValuePairs;
+        try (HttpRangeSource source = new HttpRangeSource(url);
+             ZipReader zipReader = new ZipReader(source)) {
+            ZipReader.Entry payloadEntry = zipReader.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+            offset = Utils.getZipEntryOffset(zipReader, Constants.AB_PAYLOAD_BIN_PATH);
+            size = payloadEntry.getSize();
+            headerKeyValuePairs = readPayloadProperties(zipReader);
+            payloadUrl = source.getUrl();
         } catch (IOException | IllegalArgumentException e) {
-            Log.e(TAG, "Could not prepare " + file, e);
-            mUpdaterController.getActualUpdate(mDownloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
-            mUpdaterController.notifyUpdateChange(mDownloadId);
+            Log.e(TAG, "Could not prepare " + url, e);
+            mUpdaterController.setStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
             return;
         }
 
+        String[] headers = new String[headerKeyValuePairs.length + 1];
+        System.arraycopy(headerKeyValuePairs, 0, headers, 0, headerKeyValuePairs.length);
+        headers[headerKeyValuePairs.length] = "USER_AGENT=org.exthmui.ota";
+        Log.d(TAG, "Streaming " + size + " bytes from " + payloadUrl);
+        mStreaming = true;
+        applyPayload(payloadUrl, offset, size, headers);
+    }
+
+    private static String[] readPayloadProperties(ZipReader zipReader) throws IOException {
+        ZipReader.Entry payloadPropEntry =
+                zipReader.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+        if (payloadPropEntry == null) {
+            throw new IllegalArgumentException("The given entry was not found");
+        }
+        try (InputStream is = new ByteArrayInputStream(zipReader.readEntry(payloadPropEntry));
+             InputStreamReader isr = new InputStreamReader(is);
+             BufferedReader br = new BufferedReader(isr)) {
+            List<String> lines = new ArrayList<>();
+            for (String line; (line = br.readLine()) != null; ) {
+                lines.add(line);
+            }
+            String[] headerKeyValuePairs = new String[lines.size()];
+            return lines.toArray(headerKeyValuePairs);
+        }
+    }
+
+    private synchronized void applyPayload(String uri, long offset, long size,
+            String[] headerKeyValuePairs) {
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
+                mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLATION_FAILED);
                 return;
             }
         }
 
-        mUpdateEngine.setPerformanceMode(true);
+        if (!mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLING)) {
+            return;
+        }
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        mUpdateEngine.setPerformanceMode(true);
 
-        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
+        mUpdateEngine.applyPayload(uri, offset, size, headerKeyValuePairs);
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
                 .putString(PREF_INSTALLING_AB_ID, mDownloadId)
                 .apply();
-
     }
 
     void reconnect() {
@@ -266,13 +354,13 @@ class ABUpdateInstaller {
             return false;
         }
 
+        if (!mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLATION_CANCELLED)) {
+            return false;
+        }
+
         mUpdateEngine.cancel();
         installationDone(false);
 
-        mUpdaterController.getActualUpdate(mDownloadId)
-                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
-
         return true;
     }
 
@@ -287,11 +375,11 @@ class ABUpdateInstaller {
             return false;
         }
 
-        mUpdateEngine.suspend();
+        if (!mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLATION_SUSPENDED)) {
+            return false;
+        }
 
-        mUpdaterController.getActualUpdate(mDownloadId)
-                .setStatus(UpdateStatus.INSTALLATION_SUSPENDED);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
+        mUpdateEngine.suspend();
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
                 .putString(PREF_INSTALLING_SUSPENDED_AB_ID, mDownloadId)
@@ -311,10 +399,12 @@ class ABUpdateInstaller {
             return false;
         }
 
+        if (!mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLING)) {
+            return false;
+        }
+
         mUpdateEngine.resume();
 
-        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
         mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(mProgress);
         mUpdaterController.getActualUpdate(mDownloadId).setFinalizing(mFinalizing);
         mUpdaterController.notifyInstallProgress(mDownloadId);
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.controller;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size pools for the background work of the controller. The heavy file work,
+ * like hashing and copying packages, runs in its own lane with a lower priority,
+ * so that it doesn't delay the database writes the UI waits for. The queues aren't
+ * bounded: the tasks are few and must never run on the thread queueing them, which
+ * can be the main thread or hold a lock the task needs.
+ */
+public class BackgroundExecutor {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Hashing, copying and deleting packages.
+     */
+    public static final BackgroundExecutor IO = new BackgroundExecutor("UpdaterIO", 2,
+            Process.THREAD_PRIORITY_BACKGROUND);
+
+    /**
+     * Requests the user waits for, like preparing a streamed installation. They
+     * mustn't queue behind the file work.
+     */
+    static final BackgroundExecutor NETWORK = new BackgroundExecutor("UpdaterNetwork", 2,
+            Process.THREAD_PRIORITY_DEFAULT);
+
+    /**
+     * Database writes, a single thread keeps them in order.
+     */
+    static final BackgroundExecutor DB = new BackgroundExecutor("UpdaterDB", 1,
+            Process.THREAD_PRIORITY_DEFAULT);
+
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+
+    // Time spent in the queue
+    private long mStarted;
+    private long mTotalWaitMs;
+    private long mMaxWaitMs;
+
+    private BackgroundExecutor(String name, int threads, int priority) {
+        mName = name;
+        AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(() -> {
+                    Process.setThreadPriority(priority);
+                    r.run();
+                }, name + "-" + count.incrementAndGet()));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void execute(Runnable task) {
+        mExecutor.execute(measure(task));
+    }
+
+    /**
+     * @return the pending task, cancelling it interrupts it if it's running
+     */
+    Future<?> submit(Runnable task) {
+        return mExecutor.submit(measure(task));
+    }
+
+    private Runnable measure(Runnable task) {
+        long queued = SystemClock.elapsedRealtime();
+        return () -> {
+            long wait = SystemClock.elapsedRealtime() - queued;
+            synchronized (this) {
+                mStarted++;
+                mTotalWaitMs += wait;
+                mMaxWaitMs = Math.max(mMaxWaitMs, wait);
+            }
+            task.run();
+        };
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(mName + ": active " + mExecutor.getActiveCount() +
+                ", queued " + mExecutor.getQueue().size() +
+                ", started " + mStarted +
+                ", average wait " + (mStarted > 0 ? mTotalWaitMs / mStarted : 0) + " ms" +
+                ", max wait " + mMaxWaitMs + " ms");
+    }
+}
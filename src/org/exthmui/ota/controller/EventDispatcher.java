@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.controller;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivers the events of the controller from a single thread. The events posted
+ * within a window are merged, so that an update that changes several times in a
+ * row is only broadcast once, and they're delivered in the order of their last
+ * occurrence. The receivers read the state from the controller, so the last event
+ * of each kind is all they need.
+ */
+class EventDispatcher {
+
+    private final LocalBroadcastManager mBroadcastManager;
+    private final Handler mHandler;
+    private final long mWindowMillis;
+
+    // Action and download id of the pending events, by their key
+    private final Map<String, String[]> mPending = new LinkedHashMap<>();
+    private long mReceived;
+    private long mDelivered;
+
+    private final Runnable mFlushRunnable = this::flush;
+
+    EventDispatcher(LocalBroadcastManager broadcastManager, long windowMillis) {
+        mBroadcastManager = broadcastManager;
+        mWindowMillis = windowMillis;
+        HandlerThread thread = new HandlerThread("UpdaterEvents");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    void post(String action, String downloadId) {
+        String key = action + '/' + downloadId;
+        synchronized (mPending) {
+            mReceived++;
+            // Move it after the events posted since
+            mPending.remove(key);
+            mPending.put(key, new String[]{action, downloadId});
+            if (mPending.size() == 1) {
+                mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+            }
+        }
+    }
+
+    private void flush() {
+        List<String[]> events;
+        synchronized (mPending) {
+            events = new ArrayList<>(mPending.values());
+            mPending.clear();
+            mDelivered += events.size();
+        }
+        for (String[] event : events) {
+            Intent intent = new Intent();
+            intent.setAction(event[0]);
+            intent.putExtra(UpdaterController.EXTRA_DOWNLOAD_ID, event[1]);
+            mBroadcastManager.sendBroadcast(intent);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mPending) {
+            pw.println("Events received: " + mReceived + ", delivered: " + mDelivered +
+                    ", pending: " + mPending.size());
+        }
+    }
+}
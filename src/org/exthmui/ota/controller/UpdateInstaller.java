@@ -33,6 +33,8 @@ import androidx.preference.PreferenceManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Future;
 
 class UpdateInstaller {
 
@@ -43,7 +45,7 @@ class UpdateInstaller {
     private static String sInstallingUpdate = null;
     private final Context mContext;
     private final UpdaterController mUpdaterController;
-    private Thread mPrepareUpdateThread;
+    private Future<?> mPrepareUpdateTask;
     private volatile boolean mCanCancel;
 
     private UpdateInstaller(Context context, UpdaterController controller) {
@@ -90,7 +92,7 @@ class UpdateInstaller {
 
         if (SystemProperties.get(Constants.PROP_RECOVERY_UPDATE, "").equals("true") && Utils.isEncrypted(mContext, update.getFile())) {
             // uncrypt rewrites the file so that it can be read without mounting
-            // the filesystem, so create a copy of it.
+            // the filesystem, so give it its own path, linked to the package when possible.
             prepareForUncryptAndInstall(update);
         } else {
             installPackage(update.getFile(), downloadId);
@@ -102,9 +104,7 @@ class UpdateInstaller {
             android.os.RecoverySystem.installPackage(mContext, update);
         } catch (IOException e) {
             Log.e(TAG, "Could not install update", e);
-            mUpdaterController.getActualUpdate(downloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
-            mUpdaterController.notifyUpdateChange(downloadId);
+            mUpdaterController.setStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
         }
     }
 
@@ -113,18 +113,12 @@ class UpdateInstaller {
         File uncryptFile = new File(uncryptFilePath);
 
         Runnable copyUpdateRunnable = new Runnable() {
-            private long mLastUpdate = -1;
-
             FileUtils.ProgressCallBack mProgressCallBack = new FileUtils.ProgressCallBack() {
                 @Override
                 public void update(int progress) {
-                    long now = SystemClock.elapsedRealtime();
-                    if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(progress);
-                        mUpdaterController.notifyInstallProgress(update.getDownloadId());
-                        mLastUpdate = now;
-                    }
+                    mUpdaterController.getActualUpdate(update.getDownloadId())
+                            .setInstallProgress(progress);
+                    mUpdaterController.notifyInstallProgress(update.getDownloadId());
                 }
             };
 
@@ -132,26 +126,51 @@ class UpdateInstaller {
             public void run() {
                 try {
                     mCanCancel = true;
-                    FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
+                    long start = SystemClock.elapsedRealtime();
+                    boolean linked = FileUtils.linkOrCopyFile(update.getFile(), uncryptFile,
+                            mProgressCallBack);
+                    long prepareTime = SystemClock.elapsedRealtime() - start;
                     mCanCancel = false;
-                    if (mPrepareUpdateThread.isInterrupted()) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(0);
+                    Log.d(TAG, "Prepared " + uncryptFile + (linked ? " with a link" :
+                            " with a copy") + " in " + prepareTime + " ms");
+                    mUpdaterController.getActualUpdate(update.getDownloadId())
+                            .setInstallPrepareTime(prepareTime);
+                    PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                            .putString(Constants.PREF_INSTALL_PREPARE_METHOD,
+                                    linked ? "link" : "copy")
+                            .putLong(Constants.PREF_INSTALL_PREPARE_TIME, prepareTime)
+                            .apply();
+                    if (Thread.currentThread().isInterrupted()) {
                         uncryptFile.delete();
+                        if (mUpdaterController.setStatus(update.getDownloadId(),
+                                UpdateStatus.INSTALLATION_CANCELLED)) {
+                            mUpdaterController.getActualUpdate(update.getDownloadId())
+                                    .setInstallProgress(0);
+                        }
                     } else {
+                        if (linked) {
+                            // uncrypt will rewrite the data of the downloaded package too
+                            mUpdaterController.invalidateVerification(update.getDownloadId());
+                        }
                         installPackage(uncryptFile, update.getDownloadId());
                     }
+                } catch (InterruptedIOException e) {
+                    Log.d(TAG, "Preparation cancelled");
+                    uncryptFile.delete();
+                    if (mUpdaterController.setStatus(update.getDownloadId(),
+                            UpdateStatus.INSTALLATION_CANCELLED)) {
+                        mUpdaterController.getActualUpdate(update.getDownloadId())
+                                .setInstallProgress(0);
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "Could not copy update", e);
                     uncryptFile.delete();
-                    mUpdaterController.getActualUpdate(update.getDownloadId())
-                            .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                    mUpdaterController.setStatus(update.getDownloadId(),
+                            UpdateStatus.INSTALLATION_FAILED);
                 } finally {
                     synchronized (UpdateInstaller.this) {
                         mCanCancel = false;
-                        mPrepareUpdateThread = null;
+                        mPrepareUpdateTask = null;
                         sInstallingUpdate = null;
                     }
                     mUpdaterController.notifyUpdateChange(update.getDownloadId());
@@ -159,14 +178,14 @@ class UpdateInstaller {
             }
         };
 
-        mPrepareUpdateThread = new Thread(copyUpdateRunnable);
-        mPrepareUpdateThread.start();
+        // Installing before the task can report how it went
+        if (!mUpdaterController.setStatus(update.getDownloadId(), UpdateStatus.INSTALLING)) {
+            return;
+        }
         sInstallingUpdate = update.getDownloadId();
         mCanCancel = false;
 
-        mUpdaterController.getActualUpdate(update.getDownloadId())
-                .setStatus(UpdateStatus.INSTALLING);
-        mUpdaterController.notifyUpdateChange(update.getDownloadId());
+        mPrepareUpdateTask = BackgroundExecutor.IO.submit(copyUpdateRunnable);
     }
 
     public synchronized void cancel() {
@@ -174,6 +193,6 @@ class UpdateInstaller {
             Log.d(TAG, "Nothing to cancel");
             return;
         }
-        mPrepareUpdateThread.interrupt();
+        mPrepareUpdateTask.cancel(true);
     }
 }
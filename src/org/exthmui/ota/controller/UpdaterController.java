@@ -18,29 +18,45 @@ package org.exthmui.ota.controller;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.Intent;
-import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemProperties;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
 
+import org.exthmui.ota.R;
 import org.exthmui.ota.UpdatesDbHelper;
 import org.exthmui.ota.download.DownloadClient;
+import org.exthmui.ota.download.DownloadDigest;
+import org.exthmui.ota.download.DownloadJournal;
+import org.exthmui.ota.download.MirrorScores;
+import org.exthmui.ota.misc.Constants;
+import org.exthmui.ota.misc.DownloadsCleaner;
+import org.exthmui.ota.misc.HashUtils;
 import org.exthmui.ota.misc.Utils;
 import org.exthmui.ota.model.Update;
 import org.exthmui.ota.model.UpdateInfo;
+import org.exthmui.ota.model.UpdatePackage;
+import org.exthmui.ota.model.UpdateStateMachine;
 import org.exthmui.ota.model.UpdateStatus;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UpdaterController {
 
@@ -49,78 +65,158 @@ public class UpdaterController {
     public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
     public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
+
+    // Events posted within this time are merged
+    private static final long EVENT_WINDOW_MS = 250;
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
+    // How often the downloaded bytes are saved while downloading
+    private static final long CHECKPOINT_BYTES = 16 * 1024 * 1024;
+    private static final long CHECKPOINT_INTERVAL_MS = 30000;
     @SuppressLint("StaticFieldLeak")
     private static UpdaterController sUpdaterController;
-    private final String TAG = "UpdaterController";
+    private static final String TAG = "UpdaterController";
     private final Context mContext;
     private final LocalBroadcastManager mBroadcastManager;
+    private final EventDispatcher mEventDispatcher;
     private final UpdatesDbHelper mUpdatesDbHelper;
+    private final UpdatesDbWriter mUpdatesDbWriter;
 
     private final PowerManager.WakeLock mWakeLock;
 
     private final File mDownloadRoot;
+    private final MirrorScores mMirrorScores;
+
+    // Changed from the download, verification and UI threads, read without locking
+    private final AtomicInteger mActiveDownloads = new AtomicInteger();
+    private final Set<String> mVerifyingUpdates = ConcurrentHashMap.newKeySet();
+    private final Map<String, DownloadEntry> mDownloads = new ConcurrentHashMap<>();
 
-    private int mActiveDownloads = 0;
-    private Set<String> mVerifyingUpdates = new HashSet<>();
-    private Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final FutureTask<UpdaterController> mReady;
+    private final List<Runnable> mReadyCallbacks = new ArrayList<>();
+    private boolean mIsReady;
+    private volatile long mInitializationTime;
 
     private UpdaterController(Context context) {
         mBroadcastManager = LocalBroadcastManager.getInstance(context);
+        mEventDispatcher = new EventDispatcher(mBroadcastManager, EVENT_WINDOW_MS);
         mUpdatesDbHelper = new UpdatesDbHelper(context);
+        mUpdatesDbWriter = new UpdatesDbWriter(mUpdatesDbHelper);
         mDownloadRoot = Utils.getDownloadPath();
+        mMirrorScores = new MirrorScores(new File(context.getFilesDir(), "mirror_scores"));
         PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updates:UpdaterController");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
 
-        Utils.cleanupDownloadsDir(context);
+        // The files and the database are read in the background, the callers wait
+        // for them with runWhenReady()
+        mReady = new FutureTask<>(this::initialize);
+        BackgroundExecutor.DB.execute(mReady);
+    }
+
+    private UpdaterController initialize() {
+        long start = SystemClock.elapsedRealtime();
+        Trace.beginSection("UpdaterController.initialize");
+        try {
+            DownloadsCleaner.cleanupAsync(mContext, null);
+            for (Update update : mUpdatesDbHelper.getUpdates()) {
+                addUpdate(update, false);
+            }
+        } finally {
+            Trace.endSection();
+            mInitializationTime = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "Loaded " + mDownloads.size() + " updates in " + mInitializationTime +
+                    " ms, off the main thread");
+            List<Runnable> callbacks;
+            synchronized (mReadyCallbacks) {
+                mIsReady = true;
+                callbacks = new ArrayList<>(mReadyCallbacks);
+                mReadyCallbacks.clear();
+            }
+            for (Runnable callback : callbacks) {
+                mMainHandler.post(callback);
+            }
+        }
+        return this;
+    }
 
-        for (Update update : mUpdatesDbHelper.getUpdates()) {
-            addUpdate(update, false);
+    /**
+     * @return whether the updates known from a previous run were loaded
+     */
+    public boolean isReady() {
+        synchronized (mReadyCallbacks) {
+            return mIsReady;
+        }
+    }
+
+    /**
+     * @return a future that completes once the controller is ready, not to be
+     * waited for on the main thread
+     */
+    public Future<UpdaterController> getReadyFuture() {
+        return mReady;
+    }
+
+    /**
+     * Run the given callback on the main thread once the controller is ready, right
+     * away if it's ready and this is the main thread.
+     */
+    public void runWhenReady(Runnable callback) {
+        synchronized (mReadyCallbacks) {
+            if (!mIsReady) {
+                mReadyCallbacks.add(callback);
+                return;
+            }
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            callback.run();
+        } else {
+            mMainHandler.post(callback);
         }
     }
 
     static synchronized UpdaterController getInstance(Context context) {
         if (sUpdaterController == null) {
+            long start = SystemClock.elapsedRealtime();
             sUpdaterController = new UpdaterController(context);
+            Log.d(TAG, "Created in " + (SystemClock.elapsedRealtime() - start) + " ms");
         }
         return sUpdaterController;
     }
 
     void notifyUpdateChange(String downloadId) {
-        new Thread(() -> {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            Intent intent = new Intent();
-            intent.setAction(ACTION_UPDATE_STATUS);
-            intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-            mBroadcastManager.sendBroadcast(intent);
-        }).start();
+        mEventDispatcher.post(ACTION_UPDATE_STATUS, downloadId);
     }
 
     private void notifyUpdateDelete(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_UPDATE_REMOVED);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mEventDispatcher.post(ACTION_UPDATE_REMOVED, downloadId);
     }
 
     private void notifyDownloadProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mEventDispatcher.post(ACTION_DOWNLOAD_PROGRESS, downloadId);
     }
 
     void notifyInstallProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_INSTALL_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mEventDispatcher.post(ACTION_INSTALL_PROGRESS, downloadId);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Ready: " + isReady() + ", loaded in " + mInitializationTime + " ms");
+        mEventDispatcher.dump(pw);
+        mUpdatesDbWriter.dump(pw);
+        for (DownloadEntry entry : mDownloads.values()) {
+            UpdateStateMachine stateMachine = entry.mUpdate.getStateMachine();
+            pw.println(entry.mUpdate.getDownloadId() + ": " + entry.mUpdate.getStatus() +
+                    " for " + stateMachine.getTimeInCurrentStatus() + " ms" +
+                    ", downloading " + stateMachine.getTimeInStatus(UpdateStatus.DOWNLOADING) +
+                    " ms, verifying " + stateMachine.getTimeInStatus(UpdateStatus.VERIFYING) +
+                    " ms, installing " + stateMachine.getTimeInStatus(UpdateStatus.INSTALLING) +
+                    " ms, " + stateMachine.getRejectedCount() + " illegal transitions");
+        }
+        BackgroundExecutor.IO.dump(pw);
+        BackgroundExecutor.NETWORK.dump(pw);
+        BackgroundExecutor.DB.dump(pw);
     }
 
     private void tryReleaseWakelock() {
@@ -129,20 +225,34 @@ public class UpdaterController {
         }
     }
 
-    private void addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
-        if (entry.mDownloadClient != null) {
-            return;
+    /**
+     * @return false if the update is already being downloaded
+     */
+    private boolean addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
+        synchronized (entry) {
+            if (entry.mDownloadClient != null) {
+                return false;
+            }
+            entry.mDownloadClient = downloadClient;
         }
-        entry.mDownloadClient = downloadClient;
-        mActiveDownloads++;
+        mActiveDownloads.incrementAndGet();
+        return true;
     }
 
-    private void removeDownloadClient(DownloadEntry entry) {
-        if (entry.mDownloadClient == null) {
-            return;
+    /**
+     * @return the client that was removed, null if the update wasn't being downloaded
+     */
+    private DownloadClient removeDownloadClient(DownloadEntry entry) {
+        DownloadClient downloadClient;
+        synchronized (entry) {
+            downloadClient = entry.mDownloadClient;
+            if (downloadClient == null) {
+                return null;
+            }
+            entry.mDownloadClient = null;
         }
-        entry.mDownloadClient = null;
-        mActiveDownloads--;
+        mActiveDownloads.decrementAndGet();
+        return downloadClient;
     }
 
     private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
@@ -162,35 +272,41 @@ public class UpdaterController {
                         Log.e(TAG, "Could not get content-length");
                     }
                 }
-                update.setStatus(UpdateStatus.DOWNLOADING);
+                // It could have been paused while waiting for the response
+                if (!update.compareAndSetStatus(UpdateStatus.STARTING,
+                        UpdateStatus.DOWNLOADING)) {
+                    Log.d(TAG, downloadId + " is " + update.getStatus() + ", not downloading");
+                }
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
-                        SQLiteDatabase.CONFLICT_REPLACE)).start();
+                mUpdatesDbWriter.addUpdate(update);
                 notifyUpdateChange(downloadId);
             }
 
             @Override
             public void onSuccess(File destination) {
                 Log.d(TAG, "Download complete");
-                Update update = mDownloads.get(downloadId).mUpdate;
-                update.setStatus(UpdateStatus.VERIFYING);
-                removeDownloadClient(mDownloads.get(downloadId));
-                verifyUpdateAsync(downloadId);
-                notifyUpdateChange(downloadId);
+                DownloadEntry entry = mDownloads.get(downloadId);
+                if (removeDownloadClient(entry) != null &&
+                        setStatus(entry.mUpdate, UpdateStatus.VERIFYING)) {
+                    verifyUpdateAsync(downloadId);
+                    notifyUpdateChange(downloadId);
+                }
                 tryReleaseWakelock();
             }
 
             @Override
             public void onFailure(boolean cancelled) {
-                Update update = mDownloads.get(downloadId).mUpdate;
+                DownloadEntry entry = mDownloads.get(downloadId);
                 if (cancelled) {
                     Log.d(TAG, "Download cancelled");
                     // Already notified
                 } else {
                     Log.e(TAG, "Download failed");
-                    removeDownloadClient(mDownloads.get(downloadId));
-                    update.setStatus(UpdateStatus.PAUSED_ERROR);
-                    notifyUpdateChange(downloadId);
+                    if (removeDownloadClient(entry) != null) {
+                        setStatus(entry.mUpdate, UpdateStatus.PAUSED_ERROR);
+                        mUpdatesDbWriter.checkpoint(entry.mUpdate);
+                        notifyUpdateChange(downloadId);
+                    }
                 }
                 tryReleaseWakelock();
             }
@@ -201,6 +317,8 @@ public class UpdaterController {
         return new DownloadClient.ProgressListener() {
             private long mLastUpdate = 0;
             private int mProgress = 0;
+            private long mLastCheckpoint = 0;
+            private long mLastCheckpointTime = 0;
 
             @Override
             public void update(long bytesRead, long contentLength, long speed, long eta,
@@ -218,52 +336,91 @@ public class UpdaterController {
                 }
                 final long now = SystemClock.elapsedRealtime();
                 int progress = Math.round(bytesRead * 100 / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
+                if (progress != mProgress || now - mLastUpdate > MAX_REPORT_INTERVAL_MS) {
                     mProgress = progress;
                     mLastUpdate = now;
                     update.setProgress(progress);
+                    update.setDownloadedBytes(bytesRead);
                     update.setEta(eta);
                     update.setSpeed(speed);
+                    if (bytesRead - mLastCheckpoint >= CHECKPOINT_BYTES ||
+                            now - mLastCheckpointTime >= CHECKPOINT_INTERVAL_MS) {
+                        mLastCheckpoint = bytesRead;
+                        mLastCheckpointTime = now;
+                        mUpdatesDbWriter.checkpoint(update);
+                    }
                     notifyDownloadProgress(downloadId);
                 }
             }
         };
     }
 
+    /**
+     * The package is going to be altered, verify it again before using it.
+     */
+    void invalidateVerification(String downloadId) {
+        Update update = getActualUpdate(downloadId);
+        if (update == null) {
+            return;
+        }
+        DownloadDigest.deleteDigest(update.getFile());
+        update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
+        // Not queued, the device reboots to install it right after
+        mUpdatesDbHelper.changeUpdateStatus(update);
+    }
+
     @SuppressLint("SetWorldReadable")
     private void verifyUpdateAsync(final String downloadId) {
         mVerifyingUpdates.add(downloadId);
-        new Thread(() -> {
+        BackgroundExecutor.IO.execute(() -> {
             Update update = mDownloads.get(downloadId).mUpdate;
             File file = update.getFile();
-            if (file.exists() && verifyPackage(file, update.getHash())) {
+            update.setVerifyProgress(0);
+            if (file.exists() && verifyPackage(update)) {
                 file.setReadable(true, false);
                 update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                mUpdatesDbHelper.changeUpdateStatus(update);
-                update.setStatus(UpdateStatus.VERIFIED);
+                mUpdatesDbWriter.changeUpdateStatus(update);
+                setStatus(update, UpdateStatus.VERIFIED);
             } else {
                 update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                mUpdatesDbHelper.removeUpdate(downloadId);
+                mUpdatesDbWriter.removeUpdate(downloadId);
                 update.setProgress(0);
-                update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                setStatus(update, UpdateStatus.VERIFICATION_FAILED);
             }
             mVerifyingUpdates.remove(downloadId);
             notifyUpdateChange(downloadId);
-        }).start();
+        });
     }
 
-    private boolean verifyPackage(File file, String hash) {
+    private boolean verifyPackage(Update update) {
+        File file = update.getFile();
+        String hash = update.getHash();
+        String algorithm = getHashAlgorithm(update);
+        long start = SystemClock.elapsedRealtime();
+        if (hash != null && hash.equalsIgnoreCase(DownloadDigest.getDigest(file, algorithm))) {
+            Log.d(TAG, "Verified the digest computed while downloading in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
+            return true;
+        }
         try {
-            if (Utils.calculateMD5(file).equals(hash)) {
+            String fileHash = HashUtils.calculateHash(file, algorithm, progress -> {
+                update.setVerifyProgress(progress);
+                notifyDownloadProgress(update.getDownloadId());
+            });
+            Log.d(TAG, "Hashed " + file.length() + " bytes with " + algorithm + " in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
+            if (fileHash.equalsIgnoreCase(hash)) {
                 Log.e(TAG, "Verification successful");
                 return true;
             } else {
-                throw new Exception("MD5 mismatch");
+                throw new Exception(algorithm + " mismatch");
             }
         } catch (Exception e) {
             Log.e(TAG, "Verification failed", e);
             if (file.exists()) {
                 file.delete();
+                DownloadJournal.deleteJournal(file);
+                DownloadDigest.deleteDigest(file);
             } else {
                 // The download was probably stopped. Exit silently
                 Log.e(TAG, "Error while verifying the file", e);
@@ -272,17 +429,64 @@ public class UpdaterController {
         }
     }
 
+    /**
+     * Move an update to the given status and notify the change.
+     *
+     * @return false if the update doesn't exist or can't move to the status, nothing
+     * is done then
+     */
+    boolean setStatus(String downloadId, UpdateStatus status) {
+        Update update = getActualUpdate(downloadId);
+        if (update == null) {
+            Log.e(TAG, "Not moving the unknown " + downloadId + " to " + status);
+            return false;
+        }
+        if (!setStatus(update, status)) {
+            return false;
+        }
+        notifyUpdateChange(downloadId);
+        return true;
+    }
+
+    /**
+     * @return false if the update can't move to the status, it's left as it is
+     */
+    private static boolean setStatus(Update update, UpdateStatus status) {
+        if (update.setStatus(status)) {
+            return true;
+        }
+        Log.e(TAG, "Not moving " + update.getDownloadId() + " from " + update.getStatus() +
+                " to " + status);
+        return false;
+    }
+
+    private static String getHashAlgorithm(UpdateInfo update) {
+        return HashUtils.getAlgorithm(update.getHashAlgorithm(), update.getHash());
+    }
+
     private boolean fixUpdateStatus(Update update) {
         switch (update.getPersistentStatus()) {
             case UpdateStatus.Persistent.VERIFIED:
             case UpdateStatus.Persistent.INCOMPLETE:
                 if (update.getFile() == null || !update.getFile().exists()) {
-                    update.setStatus(UpdateStatus.UNKNOWN);
+                    setStatus(update, UpdateStatus.UNKNOWN);
                     return false;
                 } else if (update.getFileSize() > 0) {
-                    update.setStatus(UpdateStatus.PAUSED);
-                    int progress = Math.round(
-                            update.getFile().length() * 100 / update.getFileSize());
+                    setStatus(update, UpdateStatus.PAUSED);
+                    // The journal is written with the file, the database can be behind
+                    long downloaded = DownloadJournal.getDownloadedBytes(update.getFile());
+                    if (downloaded != update.getDownloadedBytes()) {
+                        Log.d(TAG, update.getDownloadId() + " has " + downloaded +
+                                " bytes, " + update.getDownloadedBytes() + " were saved");
+                    }
+                    if (update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED &&
+                            update.getFile().length() != update.getFileSize()) {
+                        Log.e(TAG, update.getDownloadId() + " was changed since it was verified");
+                        update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
+                        mUpdatesDbWriter.changeUpdateStatus(update);
+                    }
+                    update.setDownloadedBytes(downloaded);
+                    int progress = Math.round(downloaded * 100 / update.getFileSize());
                     update.setProgress(progress);
                 }
                 break;
@@ -294,12 +498,57 @@ public class UpdaterController {
         return addUpdate(update, true);
     }
 
+    /**
+     * Add the builds of the updates list. The known builds that are no longer listed
+     * are marked as not available online, and forgotten if they weren't downloaded.
+     *
+     * @return whether any build was added
+     */
+    public boolean addUpdates(List<UpdateInfo> updates) {
+        Set<String> listedIds = new HashSet<>();
+        boolean added = false;
+        for (UpdateInfo update : updates) {
+            listedIds.add(update.getDownloadId());
+            added |= addUpdate(update, true);
+        }
+        Iterator<Map.Entry<String, DownloadEntry>> iterator = mDownloads.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, DownloadEntry> entry = iterator.next();
+            if (listedIds.contains(entry.getKey())) {
+                continue;
+            }
+            Update update = entry.getValue().mUpdate;
+            update.setAvailableOnline(false);
+            if (update.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN &&
+                    entry.getValue().mDownloadClient == null) {
+                Log.d(TAG, update.getDownloadId() + " is no longer listed, removing");
+                iterator.remove();
+            }
+        }
+        return added;
+    }
+
     private boolean addUpdate(final UpdateInfo updateInfo, boolean availableOnline) {
-        if (mDownloads.containsKey(updateInfo.getDownloadId())) {
+        DownloadEntry entryAdded = mDownloads.get(updateInfo.getDownloadId());
+        if (entryAdded != null) {
             Log.d(TAG, "Download (" + updateInfo.getDownloadId() + ") already added");
-            Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
+            Update updateAdded = entryAdded.mUpdate;
             updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
+            if (updateAdded.getSourceTimestamp() != 0) {
+                // Keep downloading the incremental package we started with
+                UpdatePackage delta = updateInfo.getDeltas().get(updateAdded.getSourceTimestamp());
+                if (delta != null) {
+                    updateAdded.setDownloadUrl(delta.getDownloadUrl());
+                }
+                if (updateAdded.getFullPackage() == null) {
+                    updateAdded.setFullPackage(new UpdatePackage(updateInfo));
+                }
+                return false;
+            }
             updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+            if (updateInfo.getHashAlgorithm() != null) {
+                updateAdded.setHashAlgorithm(updateInfo.getHashAlgorithm());
+            }
             return false;
         }
         Log.d(TAG, "Adding download: " + updateInfo.getDownloadId());
@@ -311,40 +560,59 @@ public class UpdaterController {
             return false;
         }
         update.setAvailableOnline(availableOnline);
-        mDownloads.clear();
-        mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
-        return true;
+        if (availableOnline && Utils.isABDevice() &&
+                update.useDelta(SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0))) {
+            Log.d(TAG, "Using the incremental package of " + update.getDownloadId() +
+                    ", " + update.getSavedBytes() + " bytes saved");
+        }
+        return mDownloads.putIfAbsent(update.getDownloadId(), new DownloadEntry(update)) == null;
+    }
+
+    private int getParallelConnections() {
+        return mContext.getResources().getInteger(R.integer.download_parallel_connections);
     }
 
     public void startDownload(String downloadId) {
         Log.d(TAG, "Starting " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient != null) {
             return;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
+        Update update = entry.mUpdate;
         File destination = new File(mDownloadRoot, update.getName());
         if (destination.exists()) {
             destination = Utils.appendSequentialNumber(destination);
             Log.d(TAG, "Changing name with " + destination.getName());
         }
-        update.setFile(destination);
         DownloadClient downloadClient;
         try {
             downloadClient = new DownloadClient.Builder()
                     .setUrl(update.getDownloadUrl())
-                    .setDestination(update.getFile())
+                    .setDestination(destination)
                     .setDownloadCallback(getDownloadCallback(downloadId))
                     .setProgressListener(getProgressListener(downloadId))
                     .setUseDuplicateLinks(true)
+                    .setMirrorScores(mMirrorScores)
+                    .setParallelConnections(getParallelConnections())
+                    .setUseJournal(true)
+                    .setDigestAlgorithm(getHashAlgorithm(update))
+                    .setAdaptiveIo(true)
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
-            update.setStatus(UpdateStatus.PAUSED_ERROR);
+            setStatus(update, UpdateStatus.PAUSED_ERROR);
             notifyUpdateChange(downloadId);
             return;
         }
-        addDownloadClient(mDownloads.get(downloadId), downloadClient);
-        update.setStatus(UpdateStatus.STARTING);
+        if (!addDownloadClient(entry, downloadClient)) {
+            Log.d(TAG, downloadId + " was started meanwhile");
+            return;
+        }
+        if (!setStatus(update, UpdateStatus.STARTING)) {
+            removeDownloadClient(entry);
+            return;
+        }
+        update.setFile(destination);
         notifyUpdateChange(downloadId);
         downloadClient.start();
         mWakeLock.acquire();
@@ -352,20 +620,24 @@ public class UpdaterController {
 
     public void resumeDownload(String downloadId) {
         Log.d(TAG, "Resuming " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient != null) {
             return;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
+        Update update = entry.mUpdate;
         File file = update.getFile();
         if (file == null || !file.exists()) {
             Log.e(TAG, "The destination file of " + downloadId + " doesn't exist, can't resume");
-            update.setStatus(UpdateStatus.PAUSED_ERROR);
+            setStatus(update, UpdateStatus.PAUSED_ERROR);
             notifyUpdateChange(downloadId);
             return;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        if (update.getFileSize() > 0 &&
+                DownloadJournal.getDownloadedBytes(file) >= update.getFileSize()) {
             Log.d(TAG, "File already downloaded, starting verification");
-            update.setStatus(UpdateStatus.VERIFYING);
+            if (!setStatus(update, UpdateStatus.VERIFYING)) {
+                return;
+            }
             verifyUpdateAsync(downloadId);
             notifyUpdateChange(downloadId);
         } else {
@@ -377,15 +649,26 @@ public class UpdaterController {
                         .setDownloadCallback(getDownloadCallback(downloadId))
                         .setProgressListener(getProgressListener(downloadId))
                         .setUseDuplicateLinks(true)
+                        .setMirrorScores(mMirrorScores)
+                        .setParallelConnections(getParallelConnections())
+                        .setUseJournal(true)
+                        .setDigestAlgorithm(getHashAlgorithm(update))
+                        .setAdaptiveIo(true)
                         .build();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
-                update.setStatus(UpdateStatus.PAUSED_ERROR);
+                setStatus(update, UpdateStatus.PAUSED_ERROR);
                 notifyUpdateChange(downloadId);
                 return;
             }
-            addDownloadClient(mDownloads.get(downloadId), downloadClient);
-            update.setStatus(UpdateStatus.STARTING);
+            if (!addDownloadClient(entry, downloadClient)) {
+                Log.d(TAG, downloadId + " was resumed meanwhile");
+                return;
+            }
+            if (!setStatus(update, UpdateStatus.STARTING)) {
+                removeDownloadClient(entry);
+                return;
+            }
             notifyUpdateChange(downloadId);
             downloadClient.resume();
             mWakeLock.acquire();
@@ -394,44 +677,86 @@ public class UpdaterController {
 
     public boolean pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
-        if (!isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        DownloadClient downloadClient = entry != null ? removeDownloadClient(entry) : null;
+        if (downloadClient == null) {
             return false;
         }
-
-        DownloadEntry entry = mDownloads.get(downloadId);
-        entry.mDownloadClient.cancel();
-        removeDownloadClient(entry);
-        entry.mUpdate.setStatus(UpdateStatus.PAUSED);
+        downloadClient.cancel();
+        setStatus(entry.mUpdate, UpdateStatus.PAUSED);
         entry.mUpdate.setEta(0);
         entry.mUpdate.setSpeed(0);
+        mUpdatesDbWriter.checkpoint(entry.mUpdate);
         notifyUpdateChange(downloadId);
         return true;
     }
 
+    /**
+     * Download the full package of an update whose incremental package couldn't
+     * be installed.
+     *
+     * @return false if the update doesn't use an incremental package
+     */
+    boolean fallBackToFullPackage(String downloadId) {
+        Update update = getActualUpdate(downloadId);
+        if (update == null || update.getSourceTimestamp() == 0 || isDownloading(downloadId)) {
+            return false;
+        }
+        final File file = update.getFile();
+        if (!update.useFullPackage()) {
+            Log.e(TAG, "The full package of " + downloadId + " is not known");
+            return false;
+        }
+        Log.d(TAG, "Falling back to the full package of " + downloadId);
+        update.setProgress(0);
+        update.setDownloadedBytes(0);
+        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        // The entry is replaced as soon as the new download starts
+        BackgroundExecutor.IO.execute(() -> {
+            if (file != null) {
+                if (file.exists() && !file.delete()) {
+                    Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+                }
+                DownloadJournal.deleteJournal(file);
+                DownloadDigest.deleteDigest(file);
+            }
+        });
+        startDownload(downloadId);
+        return true;
+    }
+
     private void deleteUpdateAsync(final Update update) {
-        new Thread(() -> {
+        BackgroundExecutor.IO.execute(() -> {
+            // Streamed updates are never stored
             File file = update.getFile();
-            if (file.exists() && !file.delete()) {
-                Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+            if (file != null) {
+                if (file.exists() && !file.delete()) {
+                    Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+                }
+                DownloadJournal.deleteJournal(file);
+                DownloadDigest.deleteDigest(file);
             }
-            mUpdatesDbHelper.removeUpdate(update.getDownloadId());
-        }).start();
+            mUpdatesDbWriter.removeUpdate(update.getDownloadId());
+        });
     }
 
     public void deleteUpdate(String downloadId) {
         Log.d(TAG, "Cancelling " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mDownloadClient != null) {
+            return;
+        }
+        Update update = entry.mUpdate;
+        if (!setStatus(update, UpdateStatus.DELETED)) {
             return;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
-        update.setStatus(UpdateStatus.DELETED);
         update.setProgress(0);
         update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
         deleteUpdateAsync(update);
 
         if (!update.getAvailableOnline()) {
             Log.d(TAG, "Download no longer available online, removing");
-            mDownloads.remove(downloadId);
+            mDownloads.remove(downloadId, entry);
             notifyUpdateDelete(downloadId);
         } else {
             notifyUpdateChange(downloadId);
@@ -460,16 +785,16 @@ public class UpdaterController {
     }
 
     public boolean isDownloading(String downloadId) {
-        return mDownloads.containsKey(downloadId) &&
-                mDownloads.get(downloadId).mDownloadClient != null;
+        DownloadEntry entry = mDownloads.get(downloadId);
+        return entry != null && entry.mDownloadClient != null;
     }
 
     public boolean hasActiveDownloads() {
-        return mActiveDownloads > 0;
+        return mActiveDownloads.get() > 0;
     }
 
     public boolean isVerifyingUpdate() {
-        return mVerifyingUpdates.size() > 0;
+        return !mVerifyingUpdates.isEmpty();
     }
 
     public boolean isVerifyingUpdate(String downloadId) {
@@ -496,7 +821,7 @@ public class UpdaterController {
 
     private class DownloadEntry {
         final Update mUpdate;
-        DownloadClient mDownloadClient;
+        volatile DownloadClient mDownloadClient;
 
         private DownloadEntry(Update update) {
             mUpdate = update;
@@ -40,7 +40,9 @@ import org.exthmui.ota.model.UpdateStatus;
 import androidx.core.app.NotificationCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.NumberFormat;
 
 public class UpdaterService extends Service {
@@ -49,6 +51,7 @@ public class UpdaterService extends Service {
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
     public static final String EXTRA_DOWNLOAD_CONTROL = "extra_download_control";
     public static final String ACTION_INSTALL_UPDATE = "action_install_update";
+    public static final String ACTION_INSTALL_STREAMING = "action_install_streaming";
     public static final String ACTION_INSTALL_STOP = "action_install_stop";
 
     public static final String ACTION_INSTALL_SUSPEND = "action_install_suspend";
@@ -108,7 +111,11 @@ public class UpdaterService extends Service {
                     handleUpdateStatusChange(update);
                 } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
                     UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    handleDownloadProgressChange(update);
+                    if (update.getStatus() == UpdateStatus.VERIFYING) {
+                        handleVerifyProgress(update);
+                    } else {
+                        handleDownloadProgressChange(update);
+                    }
                 } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
                     UpdateInfo update = mUpdaterController.getUpdate(downloadId);
                     setNotificationTitle(update);
@@ -147,6 +154,11 @@ public class UpdaterService extends Service {
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mUpdaterController.dump(pw);
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
         mHasClients = false;
@@ -157,7 +169,11 @@ public class UpdaterService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Starting service");
+        mUpdaterController.runWhenReady(() -> handleCommand(intent));
+        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
+    }
 
+    private void handleCommand(Intent intent) {
         if (intent == null || intent.getAction() == null) {
             if (ABUpdateInstaller.isInstallingUpdate(this)) {
                 // The service is being restarted.
@@ -193,10 +209,13 @@ public class UpdaterService extends Service {
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Could not install update", e);
-                mUpdaterController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
+                mUpdaterController.setStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
             }
+        } else if (ACTION_INSTALL_STREAMING.equals(intent.getAction())) {
+            String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
+            ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
+                    mUpdaterController);
+            installer.installStreaming(downloadId);
         } else if (ACTION_INSTALL_STOP.equals(intent.getAction())) {
             if (UpdateInstaller.isInstalling()) {
                 UpdateInstaller installer = UpdateInstaller.getInstance(this,
@@ -223,7 +242,6 @@ public class UpdaterService extends Service {
                 installer.resume();
             }
         }
-        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
     }
 
     public UpdaterController getUpdaterController() {
@@ -458,6 +476,14 @@ public class UpdaterService extends Service {
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
     }
 
+    private void handleVerifyProgress(UpdateInfo update) {
+        int progress = update.getVerifyProgress();
+        mNotificationBuilder.setProgress(100, progress, false);
+        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
+        mNotificationStyle.setSummaryText(percent);
+        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+    }
+
     private void handleInstallProgress(UpdateInfo update) {
         setNotificationTitle(update);
         int progress = update.getInstallProgress();
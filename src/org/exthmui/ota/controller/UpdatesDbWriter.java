@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.controller;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.exthmui.ota.UpdatesDbHelper;
+import org.exthmui.ota.model.Update;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the state of the updates from the database lane. The changes queued while
+ * a batch is being written are merged by update and written together in the next
+ * transaction, and the values are read from the update when they're written, so
+ * the last state always wins.
+ */
+class UpdatesDbWriter {
+
+    private static final String TAG = "UpdatesDbWriter";
+
+    private static final int WRITE_ROW = 1;
+    private static final int WRITE_STATUS = 1 << 1;
+    private static final int WRITE_DOWNLOADED_BYTES = 1 << 2;
+    private static final int REMOVE = 1 << 3;
+
+    // A failed batch is retried later and later, then one write at a time so that a
+    // write that can't succeed doesn't hold back the others
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final int MAX_RETRY_SHIFT = 5;
+    private static final int MAX_BATCH_FAILURES = 3;
+
+    private final UpdatesDbHelper mDbHelper;
+    private final Handler mRetryHandler = new Handler(Looper.getMainLooper());
+
+    // The pending changes, in the order they were queued
+    private final Map<String, PendingWrite> mPending = new LinkedHashMap<>();
+    private boolean mFlushQueued;
+    private int mFailures;
+    private long mBatches;
+    private long mWrites;
+
+    private static class PendingWrite {
+        private final String mDownloadId;
+        private Update mUpdate;
+        private int mFlags;
+
+        private PendingWrite(String downloadId) {
+            mDownloadId = downloadId;
+        }
+    }
+
+    UpdatesDbWriter(UpdatesDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Insert the update or replace all of its columns.
+     */
+    void addUpdate(Update update) {
+        queue(update.getDownloadId(), update, WRITE_ROW);
+    }
+
+    void changeUpdateStatus(Update update) {
+        queue(update.getDownloadId(), update, WRITE_STATUS);
+    }
+
+    /**
+     * Record how much of the update has been downloaded, so that it can be checked
+     * against the file once the process is restarted.
+     */
+    void checkpoint(Update update) {
+        queue(update.getDownloadId(), update, WRITE_DOWNLOADED_BYTES);
+    }
+
+    void removeUpdate(String downloadId) {
+        queue(downloadId, null, REMOVE);
+    }
+
+    private void queue(String downloadId, Update update, int flags) {
+        synchronized (mPending) {
+            PendingWrite write = mPending.remove(downloadId);
+            if (write == null) {
+                write = new PendingWrite(downloadId);
+            }
+            if ((write.mFlags & REMOVE) != 0 && (flags & (REMOVE | WRITE_ROW)) == 0) {
+                // The row won't exist anymore, there's nothing to change
+                Log.d(TAG, "Ignoring a change to the removed " + downloadId);
+            }
+            write.mFlags = combine(write.mFlags, flags);
+            write.mUpdate = update != null ? update : write.mUpdate;
+            mPending.put(downloadId, write);
+            if (!mFlushQueued) {
+                mFlushQueued = true;
+                BackgroundExecutor.DB.execute(this::flush);
+            }
+        }
+    }
+
+    /**
+     * @return the flags of a write followed by another one
+     */
+    private static int combine(int flags, int newFlags) {
+        if ((newFlags & (REMOVE | WRITE_ROW)) != 0) {
+            // Either replaces whatever was queued before
+            return newFlags;
+        } else if ((flags & REMOVE) != 0) {
+            return flags;
+        }
+        return flags | newFlags;
+    }
+
+    /**
+     * Queue again the writes of a batch that failed, before the changes queued since.
+     */
+    private void requeue(List<PendingWrite> writes) {
+        synchronized (mPending) {
+            Map<String, PendingWrite> newer = new LinkedHashMap<>(mPending);
+            mPending.clear();
+            for (PendingWrite write : writes) {
+                mPending.put(write.mDownloadId, write);
+            }
+            for (PendingWrite write : newer.values()) {
+                PendingWrite older = mPending.remove(write.mDownloadId);
+                if (older != null) {
+                    write.mFlags = combine(older.mFlags, write.mFlags);
+                    write.mUpdate = write.mUpdate != null ? write.mUpdate : older.mUpdate;
+                }
+                mPending.put(write.mDownloadId, write);
+            }
+        }
+    }
+
+    private void flush() {
+        List<PendingWrite> writes;
+        boolean oneByOne;
+        synchronized (mPending) {
+            writes = new ArrayList<>(mPending.values());
+            mPending.clear();
+            mFlushQueued = false;
+            oneByOne = mFailures >= MAX_BATCH_FAILURES;
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
+        if (oneByOne) {
+            flushOneByOne(writes);
+            return;
+        }
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (PendingWrite write : writes) {
+                    apply(write);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Could not write " + writes.size() + " changes", e);
+            requeue(writes);
+            scheduleRetry();
+            return;
+        }
+        synchronized (mPending) {
+            mFailures = 0;
+            mBatches++;
+            mWrites += writes.size();
+        }
+    }
+
+    /**
+     * Write the changes in separate transactions, dropping those that still fail.
+     */
+    private void flushOneByOne(List<PendingWrite> writes) {
+        int written = 0;
+        for (PendingWrite write : writes) {
+            try {
+                apply(write);
+                written++;
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Dropping the change to " + write.mDownloadId + " after " +
+                        MAX_BATCH_FAILURES + " failed batches", e);
+            }
+        }
+        synchronized (mPending) {
+            mFailures = 0;
+            mBatches++;
+            mWrites += written;
+        }
+    }
+
+    private void scheduleRetry() {
+        long delay;
+        synchronized (mPending) {
+            mFailures++;
+            if (mFlushQueued) {
+                // Something was queued meanwhile, the flush is already coming
+                return;
+            }
+            mFlushQueued = true;
+            delay = RETRY_DELAY_MS << Math.min(mFailures - 1, MAX_RETRY_SHIFT);
+        }
+        Log.d(TAG, "Retrying in " + delay + " ms");
+        mRetryHandler.postDelayed(() -> BackgroundExecutor.DB.execute(this::flush), delay);
+    }
+
+    private void apply(PendingWrite write) {
+        if ((write.mFlags & REMOVE) != 0) {
+            mDbHelper.removeUpdate(write.mDownloadId);
+        } else if ((write.mFlags & WRITE_ROW) != 0) {
+            mDbHelper.addUpdateWithOnConflict(write.mUpdate, SQLiteDatabase.CONFLICT_REPLACE);
+        } else {
+            if ((write.mFlags & WRITE_STATUS) != 0) {
+                mDbHelper.changeUpdateStatus(write.mUpdate);
+            }
+            if ((write.mFlags & WRITE_DOWNLOADED_BYTES) != 0) {
+                mDbHelper.changeDownloadedBytes(write.mUpdate);
+            }
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mPending) {
+            pw.println("Database: " + mWrites + " changes in " + mBatches + " transactions, " +
+                    mPending.size() + " pending, " + mFailures + " failed batches");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.download;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Reads a stream in chunks. In adaptive mode the size of the chunks follows the
+ * measured throughput, so that fast links are written with few large writes, and
+ * the buffers are taken from a shared pool rather than allocated by each download.
+ */
+class ChunkReader {
+
+    static final int MIN_CHUNK_SIZE = 8 * 1024;
+    static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    // How long filling a chunk should take, the size is adjusted to stay around it
+    private static final long TARGET_CHUNK_MILLIS = 100;
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<>();
+
+    private InputStream mInputStream;
+    private final boolean mAdaptive;
+    private byte[] mBuffer;
+    private int mChunkSize = MIN_CHUNK_SIZE;
+
+    ChunkReader(InputStream inputStream, boolean adaptive) {
+        mInputStream = inputStream;
+        mAdaptive = adaptive;
+        mBuffer = adaptive ? acquireBuffer() : new byte[MIN_CHUNK_SIZE];
+    }
+
+    private static byte[] acquireBuffer() {
+        synchronized (sBufferPool) {
+            byte[] buffer = sBufferPool.poll();
+            return buffer != null ? buffer : new byte[MAX_CHUNK_SIZE];
+        }
+    }
+
+    private static void releaseBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * Continue reading from another stream, e.g. after switching mirror.
+     */
+    void setInputStream(InputStream inputStream) {
+        mInputStream = inputStream;
+    }
+
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Read the next chunk into the buffer.
+     *
+     * @param limit the maximum number of bytes to read
+     * @return the number of bytes read or -1 if the end of the stream was reached
+     */
+    int read(long limit) throws IOException {
+        int len = (int) Math.min(mChunkSize, limit);
+        if (!mAdaptive) {
+            return mInputStream.read(mBuffer, 0, len);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        int count = 0;
+        while (count < len) {
+            int read = mInputStream.read(mBuffer, count, len - count);
+            if (read < 0) {
+                return count > 0 ? count : -1;
+            }
+            count += read;
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        if (elapsed < TARGET_CHUNK_MILLIS / 2 && len == mChunkSize &&
+                mChunkSize < MAX_CHUNK_SIZE) {
+            mChunkSize *= 2;
+        } else if (elapsed > TARGET_CHUNK_MILLIS * 2 && mChunkSize > MIN_CHUNK_SIZE) {
+            mChunkSize /= 2;
+        }
+        return count;
+    }
+
+    void release() {
+        if (mAdaptive && mBuffer != null) {
+            releaseBuffer(mBuffer);
+        }
+        mBuffer = null;
+    }
+}
@@ -16,8 +16,10 @@
  */
 package org.exthmui.ota.download;
 
+
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -47,6 +49,15 @@ public interface DownloadClient {
         void onSuccess(File destination);
 
         void onFailure(boolean cancelled);
+
+        /**
+         * Called instead of onSuccess() when the server replied that the resource
+         * didn't change since the conditions set with Builder.setRequestHeader().
+         * The destination isn't touched.
+         */
+        default void onNotModified() {
+            onFailure(false);
+        }
     }
 
     interface ProgressListener {
@@ -65,6 +76,12 @@ public interface DownloadClient {
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private int mParallelConnections = 1;
+        private boolean mUseJournal;
+        private String mDigestAlgorithm;
+        private boolean mAdaptiveIo;
+        private MirrorScores mMirrorScores;
+        private final Map<String, String> mRequestHeaders = new HashMap<>();
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -74,8 +91,16 @@ public interface DownloadClient {
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
             }
+            MirrorSelector mirrorSelector = new MirrorSelector(mMirrorScores);
+            // Conditional requests are better served by a single request
+            if (mParallelConnections > 1 && mRequestHeaders.isEmpty()) {
+                return new SegmentedDownloadClient(mUrl, mDestination, mProgressListener,
+                        mCallback, mUseDuplicateLinks, mParallelConnections, mDigestAlgorithm,
+                        mAdaptiveIo, mirrorSelector);
+            }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+                    mUseDuplicateLinks, mUseJournal, mDigestAlgorithm, mAdaptiveIo,
+                    mirrorSelector, mRequestHeaders);
         }
 
         public Builder setUrl(String url) {
@@ -98,9 +123,66 @@ public interface DownloadClient {
             return this;
         }
 
+        /**
+         * Add a header to the request, e.g. If-None-Match. If the server replies
+         * that the resource was not modified, DownloadCallback.onNotModified() is
+         * called.
+         */
+        public Builder setRequestHeader(String name, String value) {
+            mRequestHeaders.put(name, value);
+            return this;
+        }
+
         public Builder setUseDuplicateLinks(boolean useDuplicateLinks) {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Use and update the given scores when choosing among duplicate links.
+         */
+        public Builder setMirrorScores(MirrorScores mirrorScores) {
+            mMirrorScores = mirrorScores;
+            return this;
+        }
+
+        /**
+         * Download the file over the given number of connections, each one fetching a
+         * different range of the file. If the server doesn't support range requests,
+         * a single connection is used.
+         */
+        public Builder setParallelConnections(int parallelConnections) {
+            mParallelConnections = parallelConnections;
+            return this;
+        }
+
+        /**
+         * Record the chunks of the file in a journal as they reach the disk, so that
+         * a resumed download only trusts the data that was verifiably written.
+         * Segmented downloads always use a journal.
+         */
+        public Builder setUseJournal(boolean useJournal) {
+            mUseJournal = useJournal;
+            return this;
+        }
+
+        /**
+         * Set the algorithm of the digest computed while downloading, see
+         * DownloadDigest.getDigest(). Nothing is hashed if it's not set.
+         */
+        public Builder setDigestAlgorithm(String digestAlgorithm) {
+            mDigestAlgorithm = digestAlgorithm;
+            return this;
+        }
+
+        /**
+         * Read and write the file in chunks that grow with the measured throughput,
+         * using pooled buffers, and report the progress at a fixed cadence rather
+         * than after every read.
+         */
+        public Builder setAdaptiveIo(boolean adaptiveIo) {
+            mAdaptiveIo = adaptiveIo;
+            return this;
+        }
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.exthmui.ota.misc.HashUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Digest of a download computed while its data is being written, so that the file
+ * doesn't need to be read again to be verified. Once the download completes, the
+ * digest is stored in a sidecar file next to the destination.
+ */
+public class DownloadDigest {
+
+    private static final String TAG = "DownloadDigest";
+
+    private static final String DIGEST_FILE_EXT = ".digest";
+
+    // Digests of the paused downloads, so that resuming them doesn't require to
+    // hash the data that was already downloaded
+    private static final Map<String, DownloadDigest> sPausedDigests = new HashMap<>();
+
+    private final MessageDigest mDigest;
+    private long mPosition;
+    private long mHashingMillis;
+
+    private DownloadDigest(MessageDigest digest, long position) {
+        mDigest = digest;
+        mPosition = position;
+    }
+
+    /**
+     * @return the name of the digest algorithm, as expected by MessageDigest
+     */
+    String getAlgorithm() {
+        return mDigest.getAlgorithm();
+    }
+
+    private static File getDigestFile(File destination) {
+        return new File(destination.getAbsolutePath() + DIGEST_FILE_EXT);
+    }
+
+    /**
+     * Get the digest computed while downloading the given file.
+     *
+     * @param destination the destination of the download
+     * @param algorithm   the digest algorithm
+     * @return the digest as hex string or null if not available
+     */
+    public static String getDigest(File destination, String algorithm) {
+        File file = getDigestFile(destination);
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line = br.readLine();
+            String[] fields = line != null ? line.trim().split(" ") : new String[0];
+            if (fields.length != 3) {
+                Log.e(TAG, "Invalid digest file " + file);
+                return null;
+            }
+            if (!fields[0].equals(algorithm)) {
+                Log.d(TAG, "The download was hashed with " + fields[0]);
+                return null;
+            }
+            if (Long.parseLong(fields[2]) != destination.length()) {
+                Log.e(TAG, "The digest of " + destination + " is stale");
+                return null;
+            }
+            return fields[1];
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Delete the digest of the given destination, if any.
+     */
+    public static void deleteDigest(File destination) {
+        synchronized (sPausedDigests) {
+            sPausedDigests.remove(destination.getAbsolutePath());
+        }
+        File file = getDigestFile(destination);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Could not delete " + file);
+        }
+    }
+
+    private static MessageDigest newMessageDigest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static DownloadDigest create(File destination, String algorithm) throws IOException {
+        deleteDigest(destination);
+        return new DownloadDigest(newMessageDigest(algorithm), 0);
+    }
+
+    /**
+     * Get the digest of a download being resumed. The state saved when the download
+     * was paused is reused if possible, the rest of the data up to the given offset
+     * is read from the destination.
+     *
+     * @param destination the destination of the download
+     * @param offset      the number of contiguous bytes of the destination known to be good
+     * @param algorithm   the digest algorithm
+     */
+    static DownloadDigest resume(File destination, long offset, String algorithm)
+            throws IOException {
+        DownloadDigest digest;
+        synchronized (sPausedDigests) {
+            digest = sPausedDigests.remove(destination.getAbsolutePath());
+        }
+        if (digest == null || digest.mPosition > offset ||
+                !digest.getAlgorithm().equals(algorithm)) {
+            digest = create(destination, algorithm);
+        }
+        if (digest.mPosition < offset) {
+            Log.d(TAG, "Hashing " + (offset - digest.mPosition) + " bytes already downloaded");
+            try (FileInputStream inputStream = new FileInputStream(destination)) {
+                digest.update(inputStream.getChannel(), offset);
+            }
+        }
+        return digest;
+    }
+
+    long getPosition() {
+        return mPosition;
+    }
+
+    void update(byte[] b, int off, int len) {
+        long start = SystemClock.elapsedRealtime();
+        mDigest.update(b, off, len);
+        mPosition += len;
+        mHashingMillis += SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Hash the data of the given channel from the current position up to the given one.
+     */
+    void update(FileChannel channel, long end) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (mPosition < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - mPosition));
+            int read = channel.read(buffer, mPosition);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + mPosition);
+            }
+            mDigest.update(buffer.array(), 0, read);
+            mPosition += read;
+        }
+        mHashingMillis += SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Keep the state of the digest of a download that stopped before completing.
+     */
+    void pause(File destination) {
+        try {
+            DownloadDigest digest = new DownloadDigest((MessageDigest) mDigest.clone(),
+                    mPosition);
+            synchronized (sPausedDigests) {
+                sPausedDigests.put(destination.getAbsolutePath(), digest);
+            }
+        } catch (CloneNotSupportedException e) {
+            Log.e(TAG, "Could not save the state of the digest", e);
+        }
+    }
+
+    /**
+     * Complete the digest of a download and store it next to the destination.
+     */
+    void finish(File destination) throws IOException {
+        String hash = HashUtils.toHex(mDigest.digest());
+        Log.d(TAG, "Hashed " + mPosition + " bytes while downloading in " +
+                mHashingMillis + " ms");
+        File file = getDigestFile(destination);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            String record = getAlgorithm() + " " + hash + " " + mPosition + "\n";
+            outputStream.write(record.getBytes(StandardCharsets.US_ASCII));
+            outputStream.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.download;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar journal of a download. Every chunk of the destination is recorded along
+ * with its checksum only once it reached the disk, so that a resumed download can
+ * restart from the last chunk that was verifiably written instead of trusting the
+ * length of the destination.
+ */
+public class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    static final long CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final String JOURNAL_FILE_EXT = ".journal";
+    private static final String RECORD_SIZE = "size";
+    private static final String RECORD_SEGMENT = "segment";
+    private static final String RECORD_CHUNK = "chunk";
+
+    private final File mFile;
+    private final List<long[]> mSegments = new ArrayList<>();
+    private final List<Chunk> mChunks = new ArrayList<>();
+    private long mTotalBytes = -1;
+    private FileOutputStream mOutputStream;
+
+    private DownloadJournal(File file) {
+        mFile = file;
+    }
+
+    public static File getJournalFile(File destination) {
+        return new File(destination.getAbsolutePath() + JOURNAL_FILE_EXT);
+    }
+
+    /**
+     * Get the number of bytes of the given destination that were recorded in its
+     * journal. Downloads without a journal are assumed to be sequential, in which
+     * case the length of the destination is returned.
+     *
+     * @param destination the destination of the download
+     * @return the number of bytes downloaded
+     */
+    public static long getDownloadedBytes(File destination) {
+        File file = getJournalFile(destination);
+        if (!file.exists()) {
+            return destination.length();
+        }
+        try {
+            DownloadJournal journal = new DownloadJournal(file);
+            journal.read();
+            return journal.getJournaledBytes();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Delete the journal of the given destination, if any.
+     */
+    public static void deleteJournal(File destination) {
+        File file = getJournalFile(destination);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Could not delete " + file);
+        }
+    }
+
+    static DownloadJournal create(File destination, long totalBytes, List<long[]> segments)
+            throws IOException {
+        DownloadJournal journal = new DownloadJournal(getJournalFile(destination));
+        journal.mTotalBytes = totalBytes;
+        journal.mSegments.addAll(segments);
+        journal.rewrite();
+        return journal;
+    }
+
+    static DownloadJournal open(File destination) throws IOException {
+        DownloadJournal journal = new DownloadJournal(getJournalFile(destination));
+        if (journal.read()) {
+            // Drop the torn record
+            journal.rewrite();
+        } else {
+            journal.openForAppend();
+        }
+        return journal;
+    }
+
+    static boolean exists(File destination) {
+        return getJournalFile(destination).exists();
+    }
+
+    /**
+     * @return whether the last record was incomplete and has been ignored
+     */
+    private boolean read() throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(mFile))) {
+            for (String line; (line = br.readLine()) != null; ) {
+                if (!parseRecord(line.trim().split(" "))) {
+                    // Records are only appended, so this can only be the last one
+                    Log.w(TAG, "Ignoring incomplete record: " + line);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean parseRecord(String[] fields) {
+        try {
+            switch (fields[0]) {
+                case RECORD_SIZE:
+                    if (fields.length != 2) {
+                        return false;
+                    }
+                    mTotalBytes = Long.parseLong(fields[1]);
+                    return true;
+                case RECORD_SEGMENT:
+                    if (fields.length != 3) {
+                        return false;
+                    }
+                    mSegments.add(new long[]{Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2])});
+                    return true;
+                case RECORD_CHUNK:
+                    if (fields.length != 5) {
+                        return false;
+                    }
+                    Chunk chunk = new Chunk(Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]), Long.parseLong(fields[4], 16));
+                    if (chunk.mEnd <= chunk.mStart) {
+                        return false;
+                    }
+                    mChunks.add(chunk);
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void openForAppend() throws IOException {
+        close();
+        mOutputStream = new FileOutputStream(mFile, true);
+    }
+
+    private void rewrite() throws IOException {
+        close();
+        File tmpFile = new File(mFile.getAbsolutePath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tmpFile)) {
+            StringBuilder records = new StringBuilder();
+            if (mTotalBytes >= 0) {
+                records.append(RECORD_SIZE).append(' ').append(mTotalBytes).append('\n');
+            }
+            for (long[] segment : mSegments) {
+                records.append(RECORD_SEGMENT).append(' ').append(segment[0]).append(' ')
+                        .append(segment[1]).append('\n');
+            }
+            for (int i = 0; i < mChunks.size(); i++) {
+                records.append(formatChunk(i, mChunks.get(i)));
+            }
+            outputStream.write(records.toString().getBytes(StandardCharsets.US_ASCII));
+            outputStream.getFD().sync();
+        }
+        if (!tmpFile.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+        openForAppend();
+    }
+
+    private static String formatChunk(int index, Chunk chunk) {
+        return RECORD_CHUNK + " " + index + " " + chunk.mStart + " " + chunk.mEnd + " " +
+                Long.toHexString(chunk.mChecksum) + "\n";
+    }
+
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    List<long[]> getSegments() {
+        return mSegments;
+    }
+
+    synchronized long getJournaledBytes() {
+        long bytes = 0;
+        for (Chunk chunk : mChunks) {
+            bytes += chunk.mEnd - chunk.mStart;
+        }
+        return bytes;
+    }
+
+    private synchronized void addChunk(Chunk chunk) throws IOException {
+        if (mOutputStream == null) {
+            throw new IOException("The journal is closed");
+        }
+        String record = formatChunk(mChunks.size(), chunk);
+        mOutputStream.write(record.getBytes(StandardCharsets.US_ASCII));
+        mOutputStream.getFD().sync();
+        mChunks.add(chunk);
+    }
+
+    /**
+     * Find where a download of the given range should restart. The journaled chunks
+     * are followed from the start of the range and the last one is checked against
+     * the data on disk, dropping the chunks that don't match.
+     *
+     * @param channel the destination of the download
+     * @param start   the start of the range
+     * @param end     the end of the range, exclusive
+     * @return the offset the download of the range should restart from
+     */
+    synchronized long recover(FileChannel channel, long start, long end) throws IOException {
+        mChunks.sort(Comparator.comparingLong(c -> c.mStart));
+        boolean dropped = false;
+        while (true) {
+            Chunk last = null;
+            long position = start;
+            for (Chunk chunk : mChunks) {
+                if (chunk.mStart == position && chunk.mEnd <= end) {
+                    last = chunk;
+                    position = chunk.mEnd;
+                }
+            }
+            if (last == null || last.mChecksum == computeChecksum(channel, last)) {
+                if (dropped) {
+                    rewrite();
+                }
+                return position;
+            }
+            Log.w(TAG, "Chunk at " + last.mStart + " doesn't match its checksum");
+            mChunks.remove(last);
+            dropped = true;
+        }
+    }
+
+    private static long computeChecksum(FileChannel channel, Chunk chunk) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = chunk.mStart;
+        while (position < chunk.mEnd) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), chunk.mEnd - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                // The file is shorter than the chunk
+                return -1;
+            }
+            crc.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return crc.getValue();
+    }
+
+    ChunkRecorder newRecorder(long start, long end, Syncer syncer) {
+        return new ChunkRecorder(start, end, syncer);
+    }
+
+    synchronized void close() {
+        if (mOutputStream != null) {
+            try {
+                mOutputStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close " + mFile, e);
+            }
+            mOutputStream = null;
+        }
+    }
+
+    void delete() {
+        close();
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "Could not delete " + mFile);
+        }
+    }
+
+    interface Syncer {
+        /**
+         * Make sure the data written so far reached the disk.
+         */
+        void sync() throws IOException;
+    }
+
+    private static class Chunk {
+        private final long mStart;
+        private final long mEnd;
+        private final long mChecksum;
+
+        private Chunk(long start, long end, long checksum) {
+            mStart = start;
+            mEnd = end;
+            mChecksum = checksum;
+        }
+    }
+
+    /**
+     * Records the chunks of a range of the destination as they are written.
+     */
+    class ChunkRecorder {
+        private final long mEnd;
+        private final Syncer mSyncer;
+        private final CRC32 mCrc = new CRC32();
+        private long mChunkStart;
+        private long mPosition;
+
+        private ChunkRecorder(long start, long end, Syncer syncer) {
+            mChunkStart = start;
+            mPosition = start;
+            mEnd = end;
+            mSyncer = syncer;
+        }
+
+        /**
+         * Account the given bytes, which have just been written to the destination.
+         */
+        void update(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = (int) Math.min(len, mChunkStart + CHUNK_SIZE - mPosition);
+                mCrc.update(b, off, count);
+                mPosition += count;
+                off += count;
+                len -= count;
+                if (mPosition - mChunkStart == CHUNK_SIZE || mPosition == mEnd) {
+                    commit();
+                }
+            }
+        }
+
+        /**
+         * Record the current partial chunk. Used when the download stops cleanly, so
+         * that the data written so far doesn't need to be downloaded again.
+         */
+        void flush() throws IOException {
+            if (mPosition > mChunkStart) {
+                commit();
+            }
+        }
+
+        private void commit() throws IOException {
+            mSyncer.sync();
+            addChunk(new Chunk(mChunkStart, mPosition, mCrc.getValue()));
+            mChunkStart = mPosition;
+            mCrc.reset();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.download;
+
+import android.util.Log;
+
+import org.exthmui.ota.misc.ZipReader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a remote archive with ranged requests, so that its central directory can
+ * be read without downloading it.
+ */
+public class HttpRangeSource implements ZipReader.Source {
+
+    private static final String TAG = "HttpRangeSource";
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("(?i)bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private URL mUrl;
+    private long mSize = -1;
+
+    public HttpRangeSource(String url) throws IOException {
+        mUrl = new URL(url);
+    }
+
+    private HttpURLConnection openConnection() throws IOException {
+        HttpURLConnection client = (HttpURLConnection) mUrl.openConnection();
+        HttpURLConnectionClient.setExtraHeaders(client);
+        client.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        client.setReadTimeout(READ_TIMEOUT_MS);
+        return client;
+    }
+
+    /**
+     * @return the location of the archive once the redirects are followed
+     */
+    public String getUrl() throws IOException {
+        size();
+        return mUrl.toString();
+    }
+
+    @Override
+    public long size() throws IOException {
+        if (mSize >= 0) {
+            return mSize;
+        }
+        HttpURLConnection client = openConnection();
+        try {
+            client.setRequestMethod("HEAD");
+            int responseCode = client.getResponseCode();
+            if (!HttpURLConnectionClient.isSuccessCode(responseCode)) {
+                throw new IOException("Server replied with " + responseCode);
+            }
+            // Don't follow the redirects again for every read
+            mUrl = client.getURL();
+            mSize = client.getContentLengthLong();
+            if (mSize < 0) {
+                throw new IOException("The size of " + mUrl + " is unknown");
+            }
+            Log.d(TAG, mUrl + " is " + mSize + " bytes");
+            return mSize;
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    @Override
+    public void read(long position, byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        HttpURLConnection client = openConnection();
+        try {
+            client.setRequestProperty("Range",
+                    "bytes=" + position + "-" + (position + len - 1));
+            int responseCode = client.getResponseCode();
+            if (!HttpURLConnectionClient.isPartialContentCode(responseCode)) {
+                throw new IOException("The server doesn't support ranges, replied with " +
+                        responseCode);
+            }
+            String contentRange = client.getHeaderField("Content-Range");
+            if (!isRange(contentRange, position, position + len - 1)) {
+                throw new IOException("Asked for " + len + " bytes at " + position +
+                        ", got " + contentRange);
+            }
+            try (InputStream inputStream = client.getInputStream()) {
+                int count = 0;
+                while (count < len) {
+                    int read = inputStream.read(b, off + count, len - count);
+                    if (read < 0) {
+                        throw new EOFException("Expected " + len + " bytes, got " + count);
+                    }
+                    count += read;
+                }
+            }
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private static boolean isRange(String contentRange, long start, long end) {
+        Matcher matcher = contentRange != null ?
+                CONTENT_RANGE_PATTERN.matcher(contentRange.trim()) : null;
+        if (matcher == null || !matcher.matches()) {
+            return false;
+        }
+        try {
+            return Long.parseLong(matcher.group(1)) == start &&
+                    Long.parseLong(matcher.group(2)) == end;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -24,54 +24,78 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.exthmui.ota.misc.Constants;
 
 public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
+    private static final int MIRROR_CONNECT_TIMEOUT_MS = 5000;
+    private static final int MIRROR_READ_TIMEOUT_MS = 30000;
+    // Switch mirror if the throughput stays below a quarter of its peak for 15s
+    static final int SLOW_MIRROR_RATIO = 4;
+    static final long SLOW_MIRROR_GRACE_MS = 15000;
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final boolean mUseJournal;
+    private final String mDigestAlgorithm;
+    private final boolean mAdaptiveIo;
+    private final MirrorSelector mMirrorSelector;
+    private final Map<String, String> mRequestHeaders;
     private HttpURLConnection mClient;
     private DownloadThread mDownloadThread;
 
     HttpURLConnectionClient(String url, File destination,
                             DownloadClient.ProgressListener progressListener,
                             DownloadClient.DownloadCallback callback,
-                            boolean useDuplicateLinks) throws IOException {
+                            boolean useDuplicateLinks, boolean useJournal,
+                            String digestAlgorithm, boolean adaptiveIo,
+                            MirrorSelector mirrorSelector,
+                            Map<String, String> requestHeaders) throws IOException {
+        mRequestHeaders = new HashMap<>(requestHeaders);
         mClient = (HttpURLConnection) new URL(url).openConnection();
-        setExtraHeaders();
+        setExtraHeaders(mClient);
+        setRequestHeaders(mClient);
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mUseJournal = useJournal;
+        mDigestAlgorithm = digestAlgorithm;
+        mAdaptiveIo = adaptiveIo;
+        mMirrorSelector = mirrorSelector;
     }
 
-    private void setExtraHeaders(){
-        mClient.setRequestProperty("User-Agent", "org.exthmui.ota");
-        mClient.setRequestProperty("Current-Build-Timestamp", SystemProperties.get(Constants.PROP_BUILD_DATE, "0"));
+    static void setExtraHeaders(HttpURLConnection client) {
+        client.setRequestProperty("User-Agent", "org.exthmui.ota");
+        client.setRequestProperty("Current-Build-Timestamp", SystemProperties.get(Constants.PROP_BUILD_DATE, "0"));
     }
 
-    private static boolean isSuccessCode(int statusCode) {
+    private void setRequestHeaders(HttpURLConnection client) {
+        for (Map.Entry<String, String> header : mRequestHeaders.entrySet()) {
+            client.setRequestProperty(header.getKey(), header.getValue());
+        }
+    }
+
+    static boolean isSuccessCode(int statusCode) {
         return (statusCode / 100) == 2;
     }
 
-    private static boolean isRedirectCode(int statusCode) {
+    static boolean isRedirectCode(int statusCode) {
         return (statusCode / 100) == 3;
     }
 
-    private static boolean isPartialContentCode(int statusCode) {
+    static boolean isPartialContentCode(int statusCode) {
         return statusCode == 206;
     }
 
@@ -108,8 +132,6 @@ public class HttpURLConnectionClient implements DownloadClient {
             mCallback.onFailure(false);
             return;
         }
-        long offset = mDestination.length();
-        mClient.setRequestProperty("Range", "bytes=" + offset + "-");
         downloadFileInternalCommon(true);
     }
 
@@ -138,36 +160,19 @@ public class HttpURLConnectionClient implements DownloadClient {
     private class DownloadThread extends Thread {
 
         private final boolean mResume;
-        private long mTotalBytes = 0;
-        private long mTotalBytesRead = 0;
-        private long mCurSampleBytes = 0;
-        private long mLastMillis = 0;
-        private long mSpeed = -1;
-        private long mEta = -1;
+        private final ProgressTracker mProgress = new ProgressTracker();
+        private DownloadJournal mJournal;
+        private DownloadDigest mDigest;
+        private boolean mCompleted;
+        private List<URL> mMirrors;
+        private int mMirrorIndex;
+        private long mPeakSpeed;
+        private long mSlowSinceMillis = -1;
 
         private DownloadThread(boolean resume) {
             mResume = resume;
-        }
-
-        private void calculateSpeed() {
-            final long millis = SystemClock.elapsedRealtime();
-            final long delta = millis - mLastMillis;
-            if (delta > 500) {
-                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
-                if (mSpeed == -1) {
-                    mSpeed = curSpeed;
-                } else {
-                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
-                }
-
-                mLastMillis = millis;
-                mCurSampleBytes = mTotalBytesRead;
-            }
-        }
-
-        private void calculateEta() {
-            if (mSpeed > 0) {
-                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+            if (mAdaptiveIo) {
+                mProgress.setReportInterval(ProgressTracker.COALESCED_REPORT_INTERVAL_MS);
             }
         }
 
@@ -175,84 +180,164 @@ public class HttpURLConnectionClient implements DownloadClient {
             String range = mClient.getRequestProperty("Range");
             mClient.disconnect();
             mClient = (HttpURLConnection) newUrl.openConnection();
-            setExtraHeaders();
+            setExtraHeaders(mClient);
+            setRequestHeaders(mClient);
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
         }
 
         private void handleDuplicateLinks() throws IOException {
-            String protocol = mClient.getURL().getProtocol();
-
-            class DuplicateLink {
-                private String mUrl;
-                private int mPriority;
-
-                private DuplicateLink(String url, int priority) {
-                    mUrl = url;
-                    mPriority = priority;
+            mMirrors = mMirrorSelector.rank(MirrorSelector.getMirrors(mClient));
+            IOException error = null;
+            for (mMirrorIndex = 0; mMirrorIndex < mMirrors.size(); mMirrorIndex++) {
+                URL url = mMirrors.get(mMirrorIndex);
+                try {
+                    Log.d(TAG, "Downloading from " + url);
+                    changeClientUrl(url);
+                    mClient.setConnectTimeout(MIRROR_CONNECT_TIMEOUT_MS);
+                    if (mMirrorIndex + 1 < mMirrors.size()) {
+                        // Don't wait forever for a stalled mirror if we can switch
+                        mClient.setReadTimeout(MIRROR_READ_TIMEOUT_MS);
+                    }
+                    mClient.connect();
+                    if (!isSuccessCode(mClient.getResponseCode())) {
+                        throw new IOException("Server replied with " + mClient.getResponseCode());
+                    }
+                    return;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not download from " + url, e);
+                    mMirrorSelector.addSample(url, -1, 0);
+                    error = e;
                 }
             }
+            throw error != null ? error : new IOException("No valid duplicate link");
+        }
 
-            PriorityQueue<DuplicateLink> duplicates = null;
-
-            for (Map.Entry<String, List<String>> entry : mClient.getHeaderFields().entrySet()) {
-                if ("Link".equalsIgnoreCase((entry.getKey()))) {
-                    duplicates = new PriorityQueue<>(entry.getValue().size(),
-                            Comparator.comparingInt(d -> d.mPriority));
-
-                    // https://tools.ietf.org/html/rfc6249
-                    // https://tools.ietf.org/html/rfc5988#section-5
-                    String regex = "(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?";
-                    Pattern pattern = Pattern.compile(regex);
-                    for (String field : entry.getValue()) {
-                        Matcher matcher = pattern.matcher(field);
-                        if (matcher.matches()) {
-                            String url = matcher.group(1);
-                            String pri = matcher.group(2);
-                            int priority = pri != null ? Integer.parseInt(pri) : 999999;
-                            duplicates.add(new DuplicateLink(url, priority));
-                            Log.d(TAG, "Adding duplicate link " + url);
-                        } else {
-                            Log.d(TAG, "Ignoring link " + field);
-                        }
-                    }
-                }
+        /**
+         * Whether the throughput of the current mirror collapsed for long enough that
+         * we should try the next one.
+         */
+        private boolean shouldSwitchMirror() {
+            if (mMirrors == null || mMirrorIndex + 1 >= mMirrors.size()) {
+                return false;
+            }
+            long speed = mProgress.getSpeed();
+            if (speed <= 0) {
+                return false;
+            }
+            mPeakSpeed = Math.max(mPeakSpeed, speed);
+            if (speed * SLOW_MIRROR_RATIO >= mPeakSpeed) {
+                mSlowSinceMillis = -1;
+                return false;
             }
+            long now = SystemClock.elapsedRealtime();
+            if (mSlowSinceMillis < 0) {
+                mSlowSinceMillis = now;
+            }
+            return now - mSlowSinceMillis >= SLOW_MIRROR_GRACE_MS;
+        }
 
-            String newUrl = mClient.getHeaderField("Location");
-            for (; ; ) {
+        /**
+         * Continue the download from the next mirror that can serve the rest of it.
+         *
+         * @return the stream of the rest of the file
+         */
+        private InputStream switchMirror() throws IOException {
+            mMirrorSelector.addSample(mMirrors.get(mMirrorIndex), -1, mProgress.getSpeed());
+            long offset = mProgress.getBytesRead();
+            long expectedLength = mProgress.getTotalBytes() - offset;
+            IOException error = null;
+            while (++mMirrorIndex < mMirrors.size()) {
+                URL url = mMirrors.get(mMirrorIndex);
+                Log.d(TAG, "Switching to " + url + " at offset " + offset);
                 try {
-                    URL url = new URL(newUrl);
-                    if (!url.getProtocol().equals(protocol)) {
-                        // If we hadn't handled duplicate links, we wouldn't have
-                        // used this url.
-                        throw new IOException("Protocol changes are not allowed");
-                    }
-                    Log.d(TAG, "Downloading from " + newUrl);
                     changeClientUrl(url);
-                    mClient.setConnectTimeout(5000);
+                    mClient.setRequestProperty("Range", "bytes=" + offset + "-");
+                    mClient.setConnectTimeout(MIRROR_CONNECT_TIMEOUT_MS);
+                    if (mMirrorIndex + 1 < mMirrors.size()) {
+                        mClient.setReadTimeout(MIRROR_READ_TIMEOUT_MS);
+                    }
                     mClient.connect();
-                    if (!isSuccessCode(mClient.getResponseCode())) {
-                        throw new IOException("Server replied with " + mClient.getResponseCode());
+                    int responseCode = mClient.getResponseCode();
+                    if (!isPartialContentCode(responseCode)) {
+                        throw new IOException("Server replied with " + responseCode);
                     }
-                    return;
+                    if (mClient.getContentLengthLong() != expectedLength) {
+                        throw new IOException("The mirror serves a different file");
+                    }
+                    mPeakSpeed = 0;
+                    mSlowSinceMillis = -1;
+                    return mClient.getInputStream();
                 } catch (IOException e) {
-                    if (duplicates != null && !duplicates.isEmpty()) {
-                        DuplicateLink link = duplicates.poll();
-                        duplicates.remove(link);
-                        newUrl = link.mUrl;
-                        Log.e(TAG, "Using duplicate link " + link.mUrl, e);
-                    } else {
+                    Log.e(TAG, "Could not switch to " + url, e);
+                    mMirrorSelector.addSample(url, -1, 0);
+                    error = e;
+                }
+            }
+            throw error != null ? error : new IOException("No mirror left");
+        }
+
+        /**
+         * Read the next chunk, moving to another mirror if the current one stalled.
+         */
+        private int readChunk(ChunkReader reader, long limit) throws IOException {
+            while (true) {
+                try {
+                    return reader.read(limit);
+                } catch (SocketTimeoutException e) {
+                    if (mMirrors == null || mMirrorIndex + 1 >= mMirrors.size()) {
                         throw e;
                     }
+                    Log.w(TAG, "The mirror stalled", e);
+                    reader.setInputStream(switchMirror());
+                }
+            }
+        }
+
+        /**
+         * Find where to resume the download from. If the download has a journal, only
+         * the data it recorded is kept, otherwise the whole destination is trusted.
+         */
+        private long prepareResume() throws IOException {
+            if (!mUseJournal || !DownloadJournal.exists(mDestination)) {
+                return mDestination.length();
+            }
+            mJournal = DownloadJournal.open(mDestination);
+            long offset = 0;
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                if (mJournal.getSegments().isEmpty()) {
+                    offset = mJournal.recover(file.getChannel(), 0, Long.MAX_VALUE);
+                } else {
+                    Log.w(TAG, "The download was split in segments, starting over");
+                    mJournal.delete();
+                    mJournal = DownloadJournal.create(mDestination, -1,
+                            Collections.emptyList());
                 }
+                // Drop whatever was written after the last recorded chunk
+                file.setLength(offset);
             }
+            Log.d(TAG, "Resuming from the journaled offset " + offset);
+            return offset;
         }
 
         @Override
         public void run() {
             try {
+                long offset = 0;
+                if (mResume) {
+                    offset = prepareResume();
+                    if (mDigestAlgorithm != null) {
+                        mDigest = DownloadDigest.resume(mDestination, offset, mDigestAlgorithm);
+                    }
+                    mClient.setRequestProperty("Range", "bytes=" + offset + "-");
+                } else {
+                    if (mUseJournal) {
+                        mJournal = DownloadJournal.create(mDestination, -1,
+                                Collections.emptyList());
+                    }
+                }
+
                 mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
                 mClient.connect();
                 int responseCode = mClient.getResponseCode();
@@ -264,34 +349,64 @@ public class HttpURLConnectionClient implements DownloadClient {
 
                 mCallback.onResponse(responseCode, mClient.getURL().toString(), new Headers());
 
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    Log.d(TAG, "The server replied that the file was not modified");
+                    mCallback.onNotModified();
+                    return;
+                }
+
                 if (mResume && isPartialContentCode(responseCode)) {
-                    mTotalBytesRead = mDestination.length();
+                    mProgress.setBytesRead(offset);
                     Log.d(TAG, "The server fulfilled the partial content request");
                 } else if (mResume || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
                     mCallback.onFailure(isInterrupted());
                     return;
                 }
+                if (!mResume && mDigestAlgorithm != null) {
+                    mDigest = DownloadDigest.create(mDestination, mDigestAlgorithm);
+                }
 
                 try (
                         InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
+                        FileOutputStream outputStream = new FileOutputStream(mDestination, mResume)
                 ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
+                    mProgress.setTotalBytes(
+                            mClient.getContentLengthLong() + mProgress.getBytesRead());
+                    DownloadJournal.ChunkRecorder recorder = mJournal == null ? null :
+                            mJournal.newRecorder(offset, Long.MAX_VALUE,
+                                    () -> outputStream.getFD().sync());
+                    ChunkReader reader = new ChunkReader(inputStream, mAdaptiveIo);
+                    byte[] b = reader.getBuffer();
                     int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed();
-                        calculateEta();
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta,
-                                    false);
+                    try {
+                        while (!isInterrupted() &&
+                                (count = readChunk(reader, Long.MAX_VALUE)) > 0) {
+                            outputStream.write(b, 0, count);
+                            if (mDigest != null) {
+                                mDigest.update(b, 0, count);
+                            }
+                            if (recorder != null) {
+                                recorder.update(b, 0, count);
+                            }
+                            mProgress.addBytesRead(count);
+                            if (mProgressListener != null) {
+                                mProgress.report(mProgressListener, false);
+                            }
+                            if (shouldSwitchMirror()) {
+                                Log.w(TAG, "The throughput of the mirror collapsed");
+                                reader.setInputStream(switchMirror());
+                            }
+                        }
+                    } finally {
+                        reader.release();
+                        // What we wrote is fine even if the connection dropped
+                        if (recorder != null) {
+                            recorder.flush();
                         }
                     }
                     if (mProgressListener != null) {
-                        mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
+                        mProgress.report(mProgressListener, true);
                     }
 
                     outputStream.flush();
@@ -299,6 +414,17 @@ public class HttpURLConnectionClient implements DownloadClient {
                     if (isInterrupted()) {
                         mCallback.onFailure(true);
                     } else {
+                        if (mJournal != null) {
+                            mJournal.delete();
+                        }
+                        if (mDigest != null) {
+                            mDigest.finish(mDestination);
+                        }
+                        mCompleted = true;
+                        if (mMirrors != null) {
+                            mMirrorSelector.addSample(mMirrors.get(mMirrorIndex), -1,
+                                    mProgress.getSpeed());
+                        }
                         mCallback.onSuccess(mDestination);
                     }
                 }
@@ -306,6 +432,12 @@ public class HttpURLConnectionClient implements DownloadClient {
                 Log.e(TAG, "Error downloading file", e);
                 mCallback.onFailure(isInterrupted());
             } finally {
+                if (mJournal != null) {
+                    mJournal.close();
+                }
+                if (mDigest != null && !mCompleted) {
+                    mDigest.pause(mDestination);
+                }
                 mClient.disconnect();
             }
         }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.download;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Latency and throughput observed for each mirror, smoothed over the downloads and
+ * kept in a file so that they survive the process.
+ */
+public class MirrorScores {
+
+    private static final String TAG = "MirrorScores";
+
+    // Weight of a new sample, in percent
+    private static final long SAMPLE_WEIGHT = 30;
+
+    private final File mFile;
+    private final Map<String, long[]> mScores = new HashMap<>();
+    private boolean mLoaded;
+
+    public MirrorScores(File file) {
+        mFile = file;
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(mFile))) {
+            for (String line; (line = br.readLine()) != null; ) {
+                String[] fields = line.trim().split(" ");
+                // The time of the last sample wasn't always recorded
+                if (fields.length == 3 || fields.length == 4) {
+                    mScores.put(fields[0], new long[]{Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]),
+                            fields.length == 4 ? Long.parseLong(fields[3]) : 0});
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Could not read " + mFile, e);
+        }
+    }
+
+    private void save() {
+        StringBuilder records = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : mScores.entrySet()) {
+            records.append(entry.getKey()).append(' ').append(entry.getValue()[0])
+                    .append(' ').append(entry.getValue()[1])
+                    .append(' ').append(entry.getValue()[2]).append('\n');
+        }
+        File tmpFile = new File(mFile.getAbsolutePath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tmpFile)) {
+            outputStream.write(records.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + tmpFile, e);
+            return;
+        }
+        if (!tmpFile.renameTo(mFile)) {
+            Log.e(TAG, "Could not replace " + mFile);
+        }
+    }
+
+    /**
+     * @return the latency of the given mirror in milliseconds, -1 if unknown
+     */
+    synchronized long getLatency(String host) {
+        load();
+        long[] score = mScores.get(host);
+        return score != null ? score[0] : -1;
+    }
+
+    /**
+     * @return the throughput of the given mirror in bytes per second, -1 if unknown
+     */
+    synchronized long getThroughput(String host) {
+        load();
+        long[] score = mScores.get(host);
+        return score != null ? score[1] : -1;
+    }
+
+    /**
+     * @return the time since the last observation of the given mirror in milliseconds,
+     * Long.MAX_VALUE if unknown
+     */
+    synchronized long getAge(String host) {
+        load();
+        long[] score = mScores.get(host);
+        if (score == null || score[2] <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, System.currentTimeMillis() - score[2]);
+    }
+
+    /**
+     * Account a new observation of the given mirror.
+     *
+     * @param latency    the time to the response in milliseconds, -1 if not measured
+     * @param throughput the throughput in bytes per second
+     */
+    synchronized void addSample(String host, long latency, long throughput) {
+        load();
+        long[] score = mScores.get(host);
+        if (score == null) {
+            score = new long[]{latency, throughput, 0};
+            mScores.put(host, score);
+        } else {
+            if (latency >= 0) {
+                score[0] = score[0] < 0 ? latency : smooth(score[0], latency);
+            }
+            score[1] = smooth(score[1], throughput);
+        }
+        score[2] = System.currentTimeMillis();
+        save();
+    }
+
+    private static long smooth(long value, long sample) {
+        return (value * (100 - SAMPLE_WEIGHT) + sample * SAMPLE_WEIGHT) / 100;
+    }
+}
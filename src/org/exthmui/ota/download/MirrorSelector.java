@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the mirror to download from among the duplicate links of a redirect.
+ * The mirrors are ranked by the time they'd take to serve a segment, from their
+ * latency and throughput. They're probed concurrently, unless all of them were
+ * observed recently enough.
+ */
+class MirrorSelector {
+
+    private static final String TAG = "MirrorSelector";
+
+    private static final int PROBE_SIZE = 64 * 1024;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+    // The mirrors are compared on how long they'd take to serve this much
+    private static final long REFERENCE_SIZE = 16 * 1024 * 1024;
+    // Scores more recent than this are trusted without probing the mirrors
+    private static final long SCORES_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
+    // https://tools.ietf.org/html/rfc6249
+    // https://tools.ietf.org/html/rfc5988#section-5
+    private static final Pattern DUPLICATE_LINK_PATTERN =
+            Pattern.compile("(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?");
+
+    private final MirrorScores mScores;
+
+    MirrorSelector(MirrorScores scores) {
+        mScores = scores;
+    }
+
+    private static class DuplicateLink {
+        private String mUrl;
+        private int mPriority;
+
+        private DuplicateLink(String url, int priority) {
+            mUrl = url;
+            mPriority = priority;
+        }
+    }
+
+    private static class Probe extends Thread {
+        private final URL mUrl;
+        private final CountDownLatch mLatch;
+        private volatile HttpURLConnection mClient;
+        private volatile long mLatency = -1;
+        private volatile long mThroughput = -1;
+        private long mCost;
+
+        private Probe(URL url, CountDownLatch latch) {
+            mUrl = url;
+            mLatch = latch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mClient = (HttpURLConnection) mUrl.openConnection();
+                HttpURLConnectionClient.setExtraHeaders(mClient);
+                mClient.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+                mClient.setConnectTimeout(PROBE_TIMEOUT_MS);
+                mClient.setReadTimeout(PROBE_TIMEOUT_MS);
+                long start = SystemClock.elapsedRealtime();
+                int responseCode = mClient.getResponseCode();
+                if (!HttpURLConnectionClient.isSuccessCode(responseCode)) {
+                    throw new IOException("Server replied with " + responseCode);
+                }
+                long latency = SystemClock.elapsedRealtime() - start;
+                long bytes = 0;
+                try (InputStream inputStream = mClient.getInputStream()) {
+                    byte[] b = new byte[8192];
+                    int count;
+                    while (bytes < PROBE_SIZE && (count = inputStream.read(b)) > 0) {
+                        bytes += count;
+                    }
+                }
+                long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start - latency);
+                mThroughput = bytes * 1000 / elapsed;
+                mLatency = latency;
+            } catch (IOException e) {
+                Log.d(TAG, "Could not probe " + mUrl, e);
+            } finally {
+                if (mClient != null) {
+                    mClient.disconnect();
+                }
+                mLatch.countDown();
+            }
+        }
+    }
+
+    /**
+     * Get the mirrors a redirect points to: the location of the redirect followed
+     * by its duplicate links, sorted by their priority. Links that would change the
+     * protocol are ignored.
+     */
+    static List<URL> getMirrors(HttpURLConnection redirect) {
+        String protocol = redirect.getURL().getProtocol();
+        List<DuplicateLink> duplicates = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : redirect.getHeaderFields().entrySet()) {
+            if ("Link".equalsIgnoreCase((entry.getKey()))) {
+                for (String field : entry.getValue()) {
+                    Matcher matcher = DUPLICATE_LINK_PATTERN.matcher(field);
+                    if (matcher.matches()) {
+                        String url = matcher.group(1);
+                        String pri = matcher.group(2);
+                        int priority = pri != null ? Integer.parseInt(pri) : 999999;
+                        duplicates.add(new DuplicateLink(url, priority));
+                        Log.d(TAG, "Adding duplicate link " + url);
+                    } else {
+                        Log.d(TAG, "Ignoring link " + field);
+                    }
+                }
+            }
+        }
+        duplicates.sort(Comparator.comparingInt(d -> d.mPriority));
+
+        List<String> urls = new ArrayList<>();
+        String location = redirect.getHeaderField("Location");
+        if (location != null) {
+            urls.add(location);
+        }
+        for (DuplicateLink duplicate : duplicates) {
+            urls.add(duplicate.mUrl);
+        }
+
+        // Don't compare the URLs themselves, URL.equals() resolves the hosts
+        List<String> added = new ArrayList<>();
+        List<URL> mirrors = new ArrayList<>();
+        for (String url : urls) {
+            try {
+                URL mirror = new URL(url);
+                if (!mirror.getProtocol().equals(protocol)) {
+                    // If we hadn't handled duplicate links, we wouldn't have
+                    // used this url.
+                    Log.d(TAG, "Ignoring " + url + ", protocol changes are not allowed");
+                } else if (!added.contains(mirror.toString())) {
+                    added.add(mirror.toString());
+                    mirrors.add(mirror);
+                }
+            } catch (MalformedURLException e) {
+                Log.d(TAG, "Ignoring invalid link " + url);
+            }
+        }
+        return mirrors;
+    }
+
+    /**
+     * @return the estimated time to get REFERENCE_SIZE bytes, in milliseconds
+     */
+    private static long getCost(long latency, long throughput) {
+        if (throughput <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, latency) + REFERENCE_SIZE * 1000 / throughput;
+    }
+
+    private long getStoredCost(URL mirror) {
+        return getCost(mScores.getLatency(mirror.getHost()),
+                mScores.getThroughput(mirror.getHost()));
+    }
+
+    private boolean hasRecentScores(List<URL> mirrors) {
+        if (mScores == null) {
+            return false;
+        }
+        for (URL mirror : mirrors) {
+            if (mScores.getAge(mirror.getHost()) > SCORES_MAX_AGE_MS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sort the given mirrors, the best one first. The mirrors are probed
+     * concurrently unless their scores are recent, those that couldn't be probed
+     * are moved to the end, in their original order.
+     */
+    List<URL> rank(List<URL> mirrors) {
+        if (mirrors.size() < 2) {
+            return mirrors;
+        }
+        if (hasRecentScores(mirrors)) {
+            List<URL> ranked = new ArrayList<>(mirrors);
+            // The sort is stable, the priority of the links breaks the ties
+            ranked.sort(Comparator.comparingLong(this::getStoredCost));
+            Log.d(TAG, "Using " + ranked.get(0) + ", from the recent scores");
+            return ranked;
+        }
+        CountDownLatch latch = new CountDownLatch(mirrors.size());
+        List<Probe> probes = new ArrayList<>();
+        for (URL mirror : mirrors) {
+            Probe probe = new Probe(mirror, latch);
+            probes.add(probe);
+            probe.start();
+        }
+        try {
+            latch.await(PROBE_TIMEOUT_MS * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Probe> succeeded = new ArrayList<>();
+        List<URL> failed = new ArrayList<>();
+        for (Probe probe : probes) {
+            if (probe.mThroughput < 0) {
+                // Too slow or dead, don't wait for it
+                HttpURLConnection client = probe.mClient;
+                if (client != null) {
+                    client.disconnect();
+                }
+                failed.add(probe.mUrl);
+                addSample(probe.mUrl, -1, 0);
+            } else {
+                Log.d(TAG, probe.mUrl.getHost() + ": " + probe.mLatency + " ms, " +
+                        probe.mThroughput + " B/s");
+                addSample(probe.mUrl, probe.mLatency, probe.mThroughput);
+                // Prefer the history over a single short probe
+                probe.mCost = mScores != null ? getStoredCost(probe.mUrl) :
+                        getCost(probe.mLatency, probe.mThroughput);
+                succeeded.add(probe);
+            }
+        }
+        succeeded.sort(Comparator.comparingLong(probe -> probe.mCost));
+        List<URL> ranked = new ArrayList<>();
+        for (Probe probe : succeeded) {
+            ranked.add(probe.mUrl);
+        }
+        ranked.addAll(failed);
+        Log.d(TAG, "Using " + ranked.get(0));
+        return ranked;
+    }
+
+    /**
+     * Account the throughput of a mirror observed while downloading.
+     */
+    void addSample(URL mirror, long latency, long throughput) {
+        if (mScores != null) {
+            mScores.addSample(mirror.getHost(), latency, throughput);
+        }
+    }
+}
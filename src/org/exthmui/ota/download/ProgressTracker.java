@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.download;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps track of the bytes transferred by a download and derives its speed and ETA.
+ */
+class ProgressTracker {
+
+    // Cadence of the progress updates of the adaptive I/O mode
+    static final long COALESCED_REPORT_INTERVAL_MS = 250;
+
+    private long mTotalBytes = 0;
+    private long mTotalBytesRead = 0;
+    private long mCurSampleBytes = 0;
+    private long mLastMillis = 0;
+    private long mSpeed = -1;
+    private long mEta = -1;
+    private long mReportIntervalMillis = 0;
+    private long mLastReportMillis = 0;
+
+    void setTotalBytes(long totalBytes) {
+        mTotalBytes = totalBytes;
+    }
+
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    void setBytesRead(long bytesRead) {
+        mTotalBytesRead = bytesRead;
+        mCurSampleBytes = bytesRead;
+    }
+
+    long getBytesRead() {
+        return mTotalBytesRead;
+    }
+
+    long getSpeed() {
+        return mSpeed;
+    }
+
+    void addBytesRead(long count) {
+        mTotalBytesRead += count;
+        calculateSpeed();
+        calculateEta();
+    }
+
+    /**
+     * Coalesce the progress updates, reporting at most once per given interval.
+     */
+    void setReportInterval(long millis) {
+        mReportIntervalMillis = millis;
+    }
+
+    void report(DownloadClient.ProgressListener listener, boolean done) {
+        if (!done && mReportIntervalMillis > 0) {
+            final long millis = SystemClock.elapsedRealtime();
+            if (millis - mLastReportMillis < mReportIntervalMillis) {
+                return;
+            }
+            mLastReportMillis = millis;
+        }
+        listener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, done);
+    }
+
+    private void calculateSpeed() {
+        final long millis = SystemClock.elapsedRealtime();
+        final long delta = millis - mLastMillis;
+        if (delta > 500) {
+            final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
+            if (mSpeed == -1) {
+                mSpeed = curSpeed;
+            } else {
+                mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+            }
+
+            mLastMillis = millis;
+            mCurSampleBytes = mTotalBytesRead;
+        }
+    }
+
+    private void calculateEta() {
+        if (mSpeed > 0) {
+            mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+        }
+    }
+}
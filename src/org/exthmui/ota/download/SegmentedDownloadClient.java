@@ -0,0 +1,657 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.download;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a file over several parallel connections, each one fetching a byte range
+ * of the file and writing it at its position in the preallocated destination.
+ * If the server doesn't honor range requests, the download is handed over to
+ * {@link HttpURLConnectionClient}. When there are duplicate links, all the segments
+ * move to the next mirror if the current one fails or slows down.
+ */
+public class SegmentedDownloadClient implements DownloadClient {
+
+    private final static String TAG = "SegmentedDownloadClient";
+
+    // Splitting the file further isn't worth an extra connection
+    private static final long MIN_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final long FAILURE_CHECK_INTERVAL_MS = 500;
+    // A stalled connection must not keep the other segments and cancel() waiting
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("(?i)bytes\\s+\\d+-\\d+/(\\d+)");
+
+    private final String mUrl;
+    private final File mDestination;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final boolean mUseDuplicateLinks;
+    private final int mConnections;
+    private final String mDigestAlgorithm;
+    private final boolean mAdaptiveIo;
+    private final MirrorSelector mMirrorSelector;
+    private DownloadThread mDownloadThread;
+    private DownloadClient mFallbackClient;
+
+    SegmentedDownloadClient(String url, File destination,
+                            DownloadClient.ProgressListener progressListener,
+                            DownloadClient.DownloadCallback callback,
+                            boolean useDuplicateLinks, int connections,
+                            String digestAlgorithm, boolean adaptiveIo,
+                            MirrorSelector mirrorSelector) {
+        mUrl = url;
+        mDestination = destination;
+        mProgressListener = progressListener;
+        mCallback = callback;
+        mUseDuplicateLinks = useDuplicateLinks;
+        mConnections = connections;
+        mDigestAlgorithm = digestAlgorithm;
+        mAdaptiveIo = adaptiveIo;
+        mMirrorSelector = mirrorSelector;
+    }
+
+    private static List<long[]> createSegments(long totalBytes, int connections) {
+        long maxSegments = Math.max(1, totalBytes / MIN_SEGMENT_SIZE);
+        int count = (int) Math.min(connections, maxSegments);
+        long segmentSize = totalBytes / count;
+        List<long[]> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentSize;
+            long end = i == count - 1 ? totalBytes : start + segmentSize;
+            segments.add(new long[]{start, end});
+        }
+        return segments;
+    }
+
+    private static HttpURLConnection openConnection(URL url, long start, long end)
+            throws IOException {
+        HttpURLConnection client = (HttpURLConnection) url.openConnection();
+        HttpURLConnectionClient.setExtraHeaders(client);
+        client.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        client.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        client.setReadTimeout(READ_TIMEOUT_MS);
+        return client;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        File journalFile = DownloadJournal.getJournalFile(mDestination);
+        if (journalFile.exists() && !journalFile.delete()) {
+            Log.e(TAG, "Could not delete stale " + journalFile);
+        }
+        mDownloadThread = new DownloadThread(false);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public synchronized void resume() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        if (!mDestination.exists()) {
+            mCallback.onFailure(false);
+            return;
+        }
+        mDownloadThread = new DownloadThread(true);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public synchronized void cancel() {
+        if (mDownloadThread == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        mDownloadThread.interrupt();
+        mDownloadThread = null;
+        if (mFallbackClient != null) {
+            mFallbackClient.cancel();
+            mFallbackClient = null;
+        }
+    }
+
+    private static class Segment {
+        private final long mStart;
+        private final long mEnd;
+        private volatile long mPosition;
+
+        private Segment(long start, long end) {
+            mStart = start;
+            mEnd = end;
+            mPosition = start;
+        }
+
+        private boolean isComplete() {
+            return mPosition >= mEnd;
+        }
+    }
+
+    private class Headers implements DownloadClient.Headers {
+        private final Map<String, List<String>> mHeaders;
+        private final long mTotalBytes;
+
+        private Headers(Map<String, List<String>> headers, long totalBytes) {
+            mHeaders = headers;
+            mTotalBytes = totalBytes;
+        }
+
+        @Override
+        public String get(String name) {
+            // The probe only fetched one byte, report the size of the whole file
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                return String.valueOf(mTotalBytes);
+            }
+            for (Map.Entry<String, List<String>> entry : mHeaders.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                    return entry.getValue().get(entry.getValue().size() - 1);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Map<String, List<String>> getAll() {
+            return mHeaders;
+        }
+    }
+
+    private class DownloadThread extends Thread {
+
+        private final boolean mResume;
+        private final ProgressTracker mProgress = new ProgressTracker();
+        private final List<SegmentThread> mSegmentThreads = new ArrayList<>();
+        private volatile URL mSegmentsUrl;
+        private List<URL> mMirrors;
+        private int mMirrorIndex;
+        private long mPeakSpeed;
+        private long mSlowSinceMillis = -1;
+        private DownloadJournal mJournal;
+        private DownloadDigest mDigest;
+        private volatile boolean mStopped;
+
+        private DownloadThread(boolean resume) {
+            mResume = resume;
+            if (mAdaptiveIo) {
+                mProgress.setReportInterval(ProgressTracker.COALESCED_REPORT_INTERVAL_MS);
+            }
+        }
+
+        private synchronized void onBytesWritten(long count) {
+            mProgress.addBytesRead(count);
+            if (mProgressListener != null) {
+                mProgress.report(mProgressListener, false);
+            }
+        }
+
+        /**
+         * Ask for the first byte of the file to see whether the server supports range
+         * requests and to learn the size of the file.
+         *
+         * @return the size of the file or -1 if ranges aren't supported
+         */
+        private long probe(Map<String, List<String>> headers) throws IOException {
+            HttpURLConnection client = connectProbe();
+            try {
+                int responseCode = client.getResponseCode();
+                headers.putAll(client.getHeaderFields());
+                if (!HttpURLConnectionClient.isPartialContentCode(responseCode)) {
+                    Log.d(TAG, "The server replied with code " + responseCode);
+                    return -1;
+                }
+                String contentRange = client.getHeaderField("Content-Range");
+                Matcher matcher = contentRange != null ?
+                        CONTENT_RANGE_PATTERN.matcher(contentRange) : null;
+                if (matcher == null || !matcher.matches()) {
+                    Log.d(TAG, "Unexpected Content-Range: " + contentRange);
+                    return -1;
+                }
+                // Let all the segments skip the redirects
+                mSegmentsUrl = client.getURL();
+                return Long.parseLong(matcher.group(1));
+            } finally {
+                client.disconnect();
+            }
+        }
+
+        /**
+         * Connect to the server for the probe. If we got redirected and duplicate
+         * links are allowed, the segments will use the best mirror.
+         */
+        private HttpURLConnection connectProbe() throws IOException {
+            HttpURLConnection client = openConnection(new URL(mUrl), 0, 0);
+            client.setInstanceFollowRedirects(!mUseDuplicateLinks);
+            client.connect();
+            if (!mUseDuplicateLinks ||
+                    !HttpURLConnectionClient.isRedirectCode(client.getResponseCode())) {
+                return client;
+            }
+            mMirrors = mMirrorSelector.rank(MirrorSelector.getMirrors(client));
+            client.disconnect();
+            for (mMirrorIndex = 0; mMirrorIndex < mMirrors.size(); mMirrorIndex++) {
+                URL mirror = mMirrors.get(mMirrorIndex);
+                HttpURLConnection mirrorClient = openConnection(mirror, 0, 0);
+                try {
+                    mirrorClient.connect();
+                    int responseCode = mirrorClient.getResponseCode();
+                    if (HttpURLConnectionClient.isSuccessCode(responseCode)) {
+                        return mirrorClient;
+                    }
+                    Log.d(TAG, mirror + " replied with code " + responseCode);
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not connect to " + mirror, e);
+                }
+                mirrorClient.disconnect();
+                mMirrorSelector.addSample(mirror, -1, 0);
+            }
+            throw new IOException("No mirror can serve the file");
+        }
+
+        private void fallback() throws IOException {
+            synchronized (SegmentedDownloadClient.this) {
+                if (isInterrupted()) {
+                    mCallback.onFailure(true);
+                    return;
+                }
+                Log.d(TAG, "Falling back to a single connection");
+                mFallbackClient = new HttpURLConnectionClient(mUrl, mDestination,
+                        mProgressListener, mCallback, mUseDuplicateLinks, true, mDigestAlgorithm,
+                        mAdaptiveIo, mMirrorSelector, Collections.emptyMap());
+                if (mResume) {
+                    mFallbackClient.resume();
+                } else {
+                    mFallbackClient.start();
+                }
+            }
+        }
+
+        private void preallocate(RandomAccessFile file, long size) throws IOException {
+            try {
+                Os.posix_fallocate(file.getFD(), 0, size);
+            } catch (ErrnoException e) {
+                Log.d(TAG, "fallocate failed, extending the file instead", e);
+            }
+            file.setLength(size);
+        }
+
+        private List<Segment> createOrRecoverSegments(RandomAccessFile file, long totalBytes)
+                throws IOException {
+            List<Segment> segments = new ArrayList<>();
+            if (!mResume) {
+                preallocate(file, totalBytes);
+                List<long[]> ranges = createSegments(totalBytes, mConnections);
+                mJournal = DownloadJournal.create(mDestination, totalBytes, ranges);
+                for (long[] range : ranges) {
+                    segments.add(new Segment(range[0], range[1]));
+                }
+                return segments;
+            }
+
+            if (mJournal.getTotalBytes() != totalBytes) {
+                throw new IOException("The size of the file changed");
+            }
+            for (long[] range : mJournal.getSegments()) {
+                Segment segment = new Segment(range[0], range[1]);
+                segment.mPosition = mJournal.recover(file.getChannel(), range[0], range[1]);
+                segments.add(segment);
+            }
+            return segments;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mResume) {
+                    if (DownloadJournal.exists(mDestination)) {
+                        mJournal = DownloadJournal.open(mDestination);
+                    }
+                    if (mJournal == null || mJournal.getSegments().isEmpty()) {
+                        // Not started as a segmented download
+                        if (mJournal != null) {
+                            mJournal.close();
+                        }
+                        fallback();
+                        return;
+                    }
+                }
+
+                Map<String, List<String>> headers = new HashMap<>();
+                long totalBytes = probe(headers);
+                if (totalBytes < 0) {
+                    if (mResume) {
+                        Log.e(TAG, "The server can no longer fulfil partial content requests");
+                        mJournal.close();
+                        mCallback.onFailure(isInterrupted());
+                    } else {
+                        fallback();
+                    }
+                    return;
+                }
+
+                try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                    List<Segment> segments = createOrRecoverSegments(file, totalBytes);
+                    long downloaded = 0;
+                    for (Segment segment : segments) {
+                        downloaded += segment.mPosition - segment.mStart;
+                    }
+                    mProgress.setTotalBytes(totalBytes);
+                    mProgress.setBytesRead(downloaded);
+
+                    if (mDigestAlgorithm != null) {
+                        mDigest = mResume ?
+                                DownloadDigest.resume(mDestination, getHashableEnd(segments),
+                                        mDigestAlgorithm) :
+                                DownloadDigest.create(mDestination, mDigestAlgorithm);
+                    }
+
+                    mCallback.onResponse(HttpURLConnection.HTTP_PARTIAL,
+                            mSegmentsUrl.toString(), new Headers(headers, totalBytes));
+
+                    downloadSegments(file.getChannel(), segments);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error downloading file", e);
+                if (mJournal != null) {
+                    mJournal.close();
+                }
+                mCallback.onFailure(isInterrupted());
+            }
+        }
+
+        /**
+         * @return the end of the data that was written contiguously from the start
+         */
+        private long getHashableEnd(List<Segment> segments) {
+            for (Segment segment : segments) {
+                if (!segment.isComplete()) {
+                    return segment.mPosition;
+                }
+            }
+            return segments.get(segments.size() - 1).mEnd;
+        }
+
+        private void downloadSegments(FileChannel channel, List<Segment> segments)
+                throws IOException {
+            // cancel() interrupts this thread, which closes the channel it's reading
+            // from. Hash through a channel of our own so that the segments keep theirs.
+            try (FileChannel hashChannel = mDigest != null ?
+                    new FileInputStream(mDestination).getChannel() : null) {
+                downloadSegments(channel, hashChannel, segments);
+            }
+        }
+
+        private void downloadSegments(FileChannel channel, FileChannel hashChannel,
+                                      List<Segment> segments) throws IOException {
+            CountDownLatch latch = new CountDownLatch(segments.size());
+            for (Segment segment : segments) {
+                SegmentThread thread = new SegmentThread(segment, channel, latch);
+                mSegmentThreads.add(thread);
+                thread.start();
+            }
+            Log.d(TAG, "Downloading " + segments.size() + " segments from " + mSegmentsUrl);
+
+            // The data is hashed as it becomes contiguous, while it's likely still cached
+            boolean cancelled = false;
+            boolean hashFailed = false;
+            try {
+                while (!latch.await(FAILURE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    if (hasFailedSegment()) {
+                        break;
+                    }
+                    if (shouldSwitchMirror()) {
+                        Log.w(TAG, "The throughput of " + mSegmentsUrl + " collapsed");
+                        switchMirror(mSegmentsUrl);
+                    }
+                    if (mDigest != null) {
+                        mDigest.update(hashChannel, getHashableEnd(segments));
+                    }
+                }
+            } catch (InterruptedException | ClosedByInterruptException e) {
+                cancelled = true;
+            } catch (IOException e) {
+                Log.e(TAG, "Error hashing the file", e);
+                hashFailed = true;
+            }
+
+            // Don't interrupt the segments, it would close the channel they share,
+            // they stop on their own after their current chunk
+            mStopped = true;
+            for (SegmentThread thread : mSegmentThreads) {
+                joinUninterruptibly(thread);
+            }
+            cancelled |= isInterrupted();
+            boolean failed = hashFailed || hasFailedSegment();
+
+            if (cancelled || failed) {
+                mJournal.close();
+                if (mDigest != null) {
+                    mDigest.pause(mDestination);
+                }
+                mCallback.onFailure(cancelled);
+                return;
+            }
+            if (mDigest != null) {
+                mDigest.update(hashChannel, getHashableEnd(segments));
+            }
+
+            if (mProgressListener != null) {
+                synchronized (this) {
+                    mProgress.report(mProgressListener, true);
+                }
+            }
+            mJournal.delete();
+            if (mDigest != null) {
+                mDigest.finish(mDestination);
+            }
+            mCallback.onSuccess(mDestination);
+        }
+
+        /**
+         * Whether the throughput of the current mirror collapsed for long enough that
+         * we should try the next one.
+         */
+        private synchronized boolean shouldSwitchMirror() {
+            if (mMirrors == null || mMirrorIndex + 1 >= mMirrors.size()) {
+                return false;
+            }
+            long speed = mProgress.getSpeed();
+            if (speed <= 0) {
+                return false;
+            }
+            mPeakSpeed = Math.max(mPeakSpeed, speed);
+            if (speed * HttpURLConnectionClient.SLOW_MIRROR_RATIO >= mPeakSpeed) {
+                mSlowSinceMillis = -1;
+                return false;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (mSlowSinceMillis < 0) {
+                mSlowSinceMillis = now;
+            }
+            return now - mSlowSinceMillis >= HttpURLConnectionClient.SLOW_MIRROR_GRACE_MS;
+        }
+
+        /**
+         * Move the segments to the next mirror, they reconnect to it after their
+         * current chunk. Nothing changes if another segment already moved them.
+         *
+         * @param url the url that failed
+         * @return false if there's no mirror left
+         */
+        private synchronized boolean switchMirror(URL url) {
+            if (mSegmentsUrl != url) {
+                return true;
+            }
+            if (mMirrors == null || mMirrorIndex + 1 >= mMirrors.size()) {
+                return false;
+            }
+            mMirrorSelector.addSample(mMirrors.get(mMirrorIndex), -1, mProgress.getSpeed());
+            mSegmentsUrl = mMirrors.get(++mMirrorIndex);
+            mPeakSpeed = 0;
+            mSlowSinceMillis = -1;
+            Log.d(TAG, "Switching the segments to " + mSegmentsUrl);
+            return true;
+        }
+
+        private boolean hasFailedSegment() {
+            for (SegmentThread thread : mSegmentThreads) {
+                if (thread.mError != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void joinUninterruptibly(Thread thread) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                interrupt();
+            }
+        }
+
+        private class SegmentThread extends Thread {
+
+            private final Segment mSegment;
+            private final FileChannel mChannel;
+            private final CountDownLatch mLatch;
+            private volatile IOException mError;
+
+            private SegmentThread(Segment segment, FileChannel channel, CountDownLatch latch) {
+                mSegment = segment;
+                mChannel = channel;
+                mLatch = latch;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (!mSegment.isComplete()) {
+                        download();
+                    }
+                } catch (IOException e) {
+                    if (!mStopped) {
+                        Log.e(TAG, "Error downloading segment starting at " + mSegment.mStart, e);
+                        mError = e;
+                    }
+                } finally {
+                    mLatch.countDown();
+                }
+            }
+
+            private void download() throws IOException {
+                DownloadJournal.ChunkRecorder recorder = mJournal.newRecorder(
+                        mSegment.mPosition, mSegment.mEnd, () -> mChannel.force(false));
+                while (!mStopped && !mSegment.isComplete()) {
+                    URL url = mSegmentsUrl;
+                    try {
+                        download(url, recorder);
+                    } catch (IOException e) {
+                        if (mStopped || !switchMirror(url)) {
+                            throw e;
+                        }
+                        Log.w(TAG, "Segment at " + mSegment.mPosition + " failed on " + url, e);
+                    }
+                }
+            }
+
+            /**
+             * Download the rest of the segment from the given url, until it's done or
+             * the segments move to another mirror.
+             */
+            private void download(URL url, DownloadJournal.ChunkRecorder recorder)
+                    throws IOException {
+                HttpURLConnection client = openConnection(url, mSegment.mPosition,
+                        mSegment.mEnd - 1);
+                try {
+                    client.connect();
+                    int responseCode = client.getResponseCode();
+                    if (!HttpURLConnectionClient.isPartialContentCode(responseCode)) {
+                        throw new IOException("Server replied with " + responseCode);
+                    }
+                    if (client.getContentLengthLong() != mSegment.mEnd - mSegment.mPosition) {
+                        throw new IOException("The mirror serves a different file");
+                    }
+                    ChunkReader reader = null;
+                    try (InputStream inputStream = client.getInputStream()) {
+                        reader = new ChunkReader(inputStream, mAdaptiveIo);
+                        byte[] b = reader.getBuffer();
+                        ByteBuffer buffer = ByteBuffer.wrap(b);
+                        int count;
+                        while (!mStopped && !mSegment.isComplete() && url == mSegmentsUrl &&
+                                (count = reader.read(mSegment.mEnd - mSegment.mPosition)) > 0) {
+                            buffer.clear();
+                            buffer.limit(count);
+                            while (buffer.hasRemaining()) {
+                                mChannel.write(buffer, mSegment.mPosition + buffer.position());
+                            }
+                            recorder.update(b, 0, count);
+                            mSegment.mPosition += count;
+                            onBytesWritten(count);
+                        }
+                    } finally {
+                        if (reader != null) {
+                            reader.release();
+                        }
+                        // What we wrote is fine even if the connection dropped
+                        recorder.flush();
+                    }
+                    if (!mStopped && !mSegment.isComplete() && url == mSegmentsUrl) {
+                        throw new IOException("Connection closed before the end of the segment");
+                    }
+                } finally {
+                    client.disconnect();
+                }
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@ public final class Constants {
     public static final String AB_PAYLOAD_PROPERTIES_PATH = "payload_properties.txt";
     public static final String PREF_AUTO_UPDATES_CHECK_INTERVAL = "auto_updates_check_interval";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
+    public static final String PREF_AB_STREAMING = "ab_streaming";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
     public static final String PROP_BUILD_DATE = "ro.build.date.utc";
@@ -31,6 +32,12 @@ public final class Constants {
     public static final String PREF_INSTALL_PACKAGE_PATH = "install_package_path";
     public static final String PREF_INSTALL_AGAIN = "install_again";
     public static final String PREF_INSTALL_NOTIFIED = "install_notified";
+    public static final String PREF_INSTALL_PREPARE_METHOD = "install_prepare_method";
+    public static final String PREF_INSTALL_PREPARE_TIME = "install_prepare_time";
+    public static final String PREF_MANIFEST_CACHE_HITS = "manifest_cache_hits";
+    public static final String PREF_CLEANUP_DIR_MTIME = "cleanup_dir_mtime";
+    public static final String PREF_CLEANUP_BUILD_DATE = "cleanup_build_date";
+    public static final String PREF_CLEANUP_KNOWN_PATHS = "cleanup_known_paths";
     static final int AUTO_UPDATES_CHECK_INTERVAL_NEVER = 0;
     static final int AUTO_UPDATES_CHECK_INTERVAL_DAILY = 1;
     static final int AUTO_UPDATES_CHECK_INTERVAL_WEEKLY = 2;
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.misc;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemProperties;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.exthmui.ota.UpdatesDbHelper;
+import org.exthmui.ota.controller.BackgroundExecutor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Deletes the files of the downloads directory that don't belong to a known update.
+ * The requests made while a cleanup is running are served by that cleanup, and the
+ * directory is only listed if it or the updates of the database changed since the
+ * last one.
+ */
+public final class DownloadsCleaner {
+
+    private static final String TAG = "DownloadsCleaner";
+
+    // Files being written might not be in the database yet
+    private static final long MIN_FILE_AGE_MS = 60 * 1000;
+
+    private static final List<BroadcastReceiver.PendingResult> sPendingResults =
+            new ArrayList<>();
+    private static boolean sRunning;
+
+    private DownloadsCleaner() {
+    }
+
+    /**
+     * Clean the downloads directory in the background.
+     *
+     * @param result the result of the receiver to finish once done, can be null
+     */
+    public static void cleanupAsync(Context context, BroadcastReceiver.PendingResult result) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (sPendingResults) {
+            if (result != null) {
+                sPendingResults.add(result);
+            }
+            if (sRunning) {
+                Log.d(TAG, "Already cleaning");
+                return;
+            }
+            sRunning = true;
+        }
+        BackgroundExecutor.IO.execute(() -> {
+            try {
+                cleanup(appContext);
+            } finally {
+                List<BroadcastReceiver.PendingResult> results;
+                synchronized (sPendingResults) {
+                    sRunning = false;
+                    results = new ArrayList<>(sPendingResults);
+                    sPendingResults.clear();
+                }
+                for (BroadcastReceiver.PendingResult pendingResult : results) {
+                    pendingResult.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of bytes that were freed
+     */
+    private static synchronized long cleanup(Context context) {
+        File downloadPath = Utils.getDownloadPath();
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        long reclaimed = 0;
+
+        long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+        long prevTimestamp = preferences.getLong(Constants.PREF_INSTALL_OLD_TIMESTAMP, 0);
+        String lastUpdatePath = preferences.getString(Constants.PREF_INSTALL_PACKAGE_PATH, null);
+        boolean reinstalling = preferences.getBoolean(Constants.PREF_INSTALL_AGAIN, false);
+        if ((buildTimestamp != prevTimestamp || reinstalling) &&
+                lastUpdatePath != null) {
+            File lastUpdate = new File(lastUpdatePath);
+            if (lastUpdate.exists()) {
+                long length = lastUpdate.length();
+                if (lastUpdate.delete()) {
+                    reclaimed += length;
+                }
+                // Remove the pref not to delete the file if re-downloaded
+                preferences.edit().remove(Constants.PREF_INSTALL_PACKAGE_PATH).apply();
+            }
+        }
+
+        if (!downloadPath.isDirectory()) {
+            return reclaimed;
+        }
+
+        // Ideally the database is empty when we get here, only the compatible
+        // updates are kept
+        UpdatesDbHelper dbHelper = new UpdatesDbHelper(context);
+        Set<String> knownPaths = new HashSet<>(dbHelper.getUpdatePaths(buildTimestamp));
+        dbHelper.close();
+
+        // Adding or removing a file changes the directory, the rows of the database
+        // can change without touching it
+        if (downloadPath.lastModified() ==
+                preferences.getLong(Constants.PREF_CLEANUP_DIR_MTIME, -1) &&
+                buildTimestamp == preferences.getLong(Constants.PREF_CLEANUP_BUILD_DATE, -1) &&
+                knownPaths.hashCode() ==
+                        preferences.getInt(Constants.PREF_CLEANUP_KNOWN_PATHS, -1)) {
+            Log.d(TAG, downloadPath + " didn't change since the last cleanup");
+            return reclaimed;
+        }
+        Log.d(TAG, "Cleaning " + downloadPath);
+        File[] files = downloadPath.listFiles();
+        if (files == null) {
+            return reclaimed;
+        }
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            if (now - file.lastModified() < MIN_FILE_AGE_MS) {
+                continue;
+            }
+            if (path.endsWith(Constants.UNCRYPT_FILE_EXT) ||
+                    (!knownPaths.contains(path) && !isSidecarOfKnownPath(path, knownPaths))) {
+                Log.d(TAG, "Deleting " + path);
+                long length = file.length();
+                if (file.delete()) {
+                    reclaimed += length;
+                }
+            }
+        }
+
+        preferences.edit()
+                .putLong(Constants.PREF_CLEANUP_DIR_MTIME, downloadPath.lastModified())
+                .putLong(Constants.PREF_CLEANUP_BUILD_DATE, buildTimestamp)
+                .putInt(Constants.PREF_CLEANUP_KNOWN_PATHS, knownPaths.hashCode())
+                .apply();
+        Log.d(TAG, "Reclaimed " + reclaimed + " bytes");
+        return reclaimed;
+    }
+
+    // Downloads keep their state in files named after the destination
+    private static boolean isSidecarOfKnownPath(String path, Set<String> knownPaths) {
+        int dot = path.indexOf('.', path.lastIndexOf(File.separatorChar) + 1);
+        while (dot >= 0) {
+            if (knownPaths.contains(path.substring(0, dot))) {
+                return true;
+            }
+            dot = path.indexOf('.', dot + 1);
+        }
+        return false;
+    }
+}
@@ -16,33 +16,117 @@
  */
 package org.exthmui.ota.misc;
 
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
 
 public class FileUtils {
 
     private static final String TAG = "FileUtils";
 
+    // Large enough for the kernel to copy efficiently, small enough to react quickly
+    // to interruptions
+    public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    // Data that has to be hashed while being copied goes through this much at a time
+    private static final int DIGEST_BUFFER_SIZE = 1024 * 1024;
+
     public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
             throws IOException {
+        copyFile(sourceFile, destFile, DEFAULT_CHUNK_SIZE, progressCallBack);
+    }
+
+    /**
+     * Copy a file in chunks, checking between them whether the thread was interrupted.
+     * The progress is reported at most every PROGRESS_INTERVAL_MS, and the copy is
+     * synced to the disk before returning.
+     *
+     * @throws InterruptedIOException if the thread was interrupted, the destination is
+     *                                deleted
+     */
+    public static void copyFile(File sourceFile, File destFile, long chunkSize,
+                                ProgressCallBack progressCallBack) throws IOException {
+        copyFile(sourceFile, destFile, chunkSize, progressCallBack, new MessageDigest[0]);
+    }
+
+    /**
+     * Like copyFile(), but also feed the copied data to the given digests. The data is
+     * read once into a direct buffer, hashed and written from it.
+     */
+    public static void copyFile(File sourceFile, File destFile, long chunkSize,
+                                ProgressCallBack progressCallBack, MessageDigest... digests)
+            throws IOException {
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
              FileChannel destChannel = new FileOutputStream(destFile).getChannel()) {
-            if (progressCallBack != null) {
-                ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
-                        sourceFile.length(), progressCallBack);
-                destChannel.transferFrom(readableByteChannel, 0, sourceChannel.size());
-            } else {
-                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+            long size = sourceChannel.size();
+            long position = 0;
+            int progress = -1;
+            long lastReport = -1;
+            ByteBuffer buffer = digests.length > 0 ?
+                    ByteBuffer.allocateDirect((int) Math.min(chunkSize, DIGEST_BUFFER_SIZE)) :
+                    null;
+            while (position < size) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Copy of " + sourceFile + " interrupted");
+                }
+                long len = Math.min(chunkSize, size - position);
+                long transferred;
+                if (digests.length == 0) {
+                    // transferTo() lets the kernel copy the data, without going through the heap
+                    transferred = sourceChannel.transferTo(position, len, destChannel);
+                } else {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), len));
+                    transferred = sourceChannel.read(buffer, position);
+                    buffer.flip();
+                    for (MessageDigest digest : digests) {
+                        buffer.rewind();
+                        digest.update(buffer);
+                    }
+                    buffer.rewind();
+                    while (buffer.hasRemaining()) {
+                        destChannel.write(buffer, position + buffer.position());
+                    }
+                }
+                if (transferred <= 0) {
+                    throw new IOException("Could not copy " + sourceFile + " past " + position);
+                }
+                position += transferred;
+                if (progressCallBack != null) {
+                    int newProgress = Math.round(position * 100.f / size);
+                    long now = SystemClock.elapsedRealtime();
+                    if (newProgress != progress && (lastReport < 0 || position == size ||
+                            now - lastReport >= PROGRESS_INTERVAL_MS)) {
+                        progressCallBack.update(newProgress);
+                        progress = newProgress;
+                        lastReport = now;
+                    }
+                }
             }
+            destChannel.force(true);
+        } catch (ClosedByInterruptException e) {
+            // Interrupted in the middle of a chunk
+            if (destFile.exists()) {
+                destFile.delete();
+            }
+            throw new InterruptedIOException("Copy of " + sourceFile + " interrupted");
         } catch (IOException e) {
-            Log.e(TAG, "Could not copy file", e);
+            if (!(e instanceof InterruptedIOException)) {
+                Log.e(TAG, "Could not copy file", e);
+            }
             if (destFile.exists()) {
                 destFile.delete();
             }
@@ -50,46 +134,32 @@ public class FileUtils {
         }
     }
 
-    public interface ProgressCallBack {
-        void update(int progress);
-    }
-
-    private static class CallbackByteChannel implements ReadableByteChannel {
-        private ProgressCallBack mCallback;
-        private long mSize;
-        private ReadableByteChannel mReadableByteChannel;
-        private long mSizeRead;
-        private int mProgress;
-
-        private CallbackByteChannel(ReadableByteChannel readableByteChannel, long expectedSize,
-                                    ProgressCallBack callback) {
-            this.mCallback = callback;
-            this.mSize = expectedSize;
-            this.mReadableByteChannel = readableByteChannel;
-        }
-
-        @Override
-        public void close() throws IOException {
-            mReadableByteChannel.close();
-        }
-
-        @Override
-        public boolean isOpen() {
-            return mReadableByteChannel.isOpen();
+    /**
+     * Make the content of a file available under another path, with a hard link if
+     * the filesystem allows it or with a copy otherwise. Unlike a copy, the link
+     * shares the data with the original file, writes to one affect the other.
+     *
+     * @return true if the file was linked, false if it was copied
+     */
+    public static boolean linkOrCopyFile(File sourceFile, File destFile,
+                                         ProgressCallBack progressCallBack) throws IOException {
+        if (destFile.exists() && !destFile.delete()) {
+            throw new IOException("Could not delete " + destFile);
         }
-
-        @Override
-        public int read(ByteBuffer bb) throws IOException {
-            int read;
-            if ((read = mReadableByteChannel.read(bb)) > 0) {
-                mSizeRead += read;
-                int progress = mSize > 0 ? Math.round(mSizeRead * 100.f / mSize) : -1;
-                if (mProgress != progress) {
-                    mCallback.update(progress);
-                    mProgress = progress;
-                }
+        try {
+            Os.link(sourceFile.getAbsolutePath(), destFile.getAbsolutePath());
+            if (progressCallBack != null) {
+                progressCallBack.update(100);
             }
-            return read;
+            return true;
+        } catch (ErrnoException e) {
+            Log.d(TAG, "Could not link " + sourceFile + ", copying it", e);
         }
+        copyFile(sourceFile, destFile, progressCallBack);
+        return false;
+    }
+
+    public interface ProgressCallBack {
+        void update(int progress);
     }
 }
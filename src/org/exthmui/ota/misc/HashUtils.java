@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.misc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+public class HashUtils {
+
+    private static final String TAG = "HashUtils";
+
+    public static final String MD5 = "MD5";
+    public static final String SHA_256 = "SHA-256";
+    public static final String SHA_512 = "SHA-512";
+
+    // The same direct buffer is used for the whole file, mappings would stay in the
+    // address space until they're garbage collected
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private HashUtils() {
+    }
+
+    /**
+     * Get the digest algorithm of a hash.
+     *
+     * @param name the algorithm as specified by the server, can be null
+     * @param hash the hash, used to guess the algorithm if not specified
+     * @return the name of the algorithm, as expected by MessageDigest
+     */
+    public static String getAlgorithm(String name, String hash) {
+        if (name != null && !name.isEmpty()) {
+            switch (name.toUpperCase(Locale.ROOT).replace("-", "")) {
+                case "MD5":
+                    return MD5;
+                case "SHA256":
+                    return SHA_256;
+                case "SHA512":
+                    return SHA_512;
+                default:
+                    Log.w(TAG, "Unknown hash algorithm " + name);
+                    break;
+            }
+        }
+        int length = hash != null ? hash.length() : 0;
+        if (length == 64) {
+            return SHA_256;
+        } else if (length == 128) {
+            return SHA_512;
+        }
+        return MD5;
+    }
+
+    /**
+     * Calculate the digest of a file, reading it through a direct buffer so that the
+     * data isn't copied to the heap.
+     *
+     * @param file             the file to hash
+     * @param algorithm        the digest algorithm
+     * @param progressCallBack notified each time the progress changes, can be null
+     * @return the digest as lowercase hex string
+     */
+    public static String calculateHash(File file, String algorithm,
+                                       FileUtils.ProgressCallBack progressCallBack)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            int lastProgress = -1;
+            long position = 0;
+            int count;
+            while ((count = channel.read(buffer)) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Interrupted while hashing " + file);
+                }
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+                position += count;
+                if (progressCallBack != null && size > 0) {
+                    int progress = Math.round(position * 100f / size);
+                    if (progress != lastProgress) {
+                        progressCallBack.update(progress);
+                        lastProgress = progress;
+                    }
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
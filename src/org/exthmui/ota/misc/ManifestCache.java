@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.misc;
+
+import org.exthmui.ota.model.UpdateInfo;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the parsed updates lists, so that the activity, the
+ * receiver and the checks for new updates don't read and parse the same file
+ * again. An entry is only used while the file has the same modification time
+ * and length as when it was parsed. All the builds are kept, whoever only wants
+ * the compatible ones filters them.
+ */
+final class ManifestCache {
+
+    // The cached list and the one being downloaded are all we need
+    private static final int MAX_ENTRIES = 4;
+
+    private static final Map<String, Entry> sEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private static class Entry {
+        private final long mLastModified;
+        private final long mLength;
+        private final List<UpdateInfo> mUpdates;
+
+        private Entry(long lastModified, long length, List<UpdateInfo> updates) {
+            mLastModified = lastModified;
+            mLength = length;
+            mUpdates = Collections.unmodifiableList(updates);
+        }
+
+        private boolean matches(File file) {
+            return file.lastModified() == mLastModified && file.length() == mLength;
+        }
+    }
+
+    private ManifestCache() {
+    }
+
+    /**
+     * @return the updates parsed from the given file, null if they're not cached
+     */
+    static synchronized List<UpdateInfo> get(File file) {
+        Entry entry = sEntries.get(file.getAbsolutePath());
+        if (entry == null || !entry.matches(file)) {
+            return null;
+        }
+        return entry.mUpdates;
+    }
+
+    static synchronized void put(File file, long lastModified, long length,
+            List<UpdateInfo> updates) {
+        sEntries.put(file.getAbsolutePath(), new Entry(lastModified, length, updates));
+    }
+
+    /**
+     * Keep what was parsed from a file that was renamed, renaming a file doesn't
+     * change its modification time.
+     */
+    static synchronized void move(File from, File to) {
+        Entry entry = sEntries.remove(from.getAbsolutePath());
+        sEntries.remove(to.getAbsolutePath());
+        if (entry != null && entry.matches(to)) {
+            sEntries.put(to.getAbsolutePath(), entry);
+        }
+    }
+
+    static synchronized void invalidate(File file) {
+        sEntries.remove(file.getAbsolutePath());
+    }
+}
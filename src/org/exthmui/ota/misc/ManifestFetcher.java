@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.misc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.exthmui.ota.download.DownloadClient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Downloads the updates list with a conditional request, using the ETag and
+ * Last-Modified of the cached list, so that an unchanged list isn't downloaded
+ * and parsed again.
+ */
+public class ManifestFetcher {
+
+    private static final String TAG = "ManifestFetcher";
+
+    private static final String META_FILE_EXT = ".meta";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private final Context mContext;
+    private final File mJson;
+    private final File mJsonNew;
+    private String mETag;
+    private String mLastModified;
+
+    public interface Callback {
+        /**
+         * The cached list is up to date.
+         */
+        void onNotModified();
+
+        /**
+         * A new list was downloaded. Once processed, it should replace the cached one
+         * with commit().
+         */
+        void onSuccess(File json, File jsonNew);
+
+        void onFailure(boolean cancelled);
+    }
+
+    public ManifestFetcher(Context context) {
+        mContext = context.getApplicationContext();
+        mJson = Utils.getCachedUpdateList(context);
+        mJsonNew = new File(mJson.getAbsolutePath() + UUID.randomUUID());
+    }
+
+    private static File getMetaFile(File json) {
+        return new File(json.getAbsolutePath() + META_FILE_EXT);
+    }
+
+    /**
+     * @return the number of checks that found the cached list up to date
+     */
+    public static int getCacheHits(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(Constants.PREF_MANIFEST_CACHE_HITS, 0);
+    }
+
+    public void fetch(Callback callback) throws IOException {
+        DownloadClient.Builder builder = new DownloadClient.Builder()
+                .setUrl(Utils.getServerURL())
+                .setDestination(mJsonNew)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(int statusCode, String url,
+                                           DownloadClient.Headers headers) {
+                        mETag = headers.get(HEADER_ETAG);
+                        mLastModified = headers.get(HEADER_LAST_MODIFIED);
+                    }
+
+                    @Override
+                    public void onSuccess(File destination) {
+                        callback.onSuccess(mJson, mJsonNew);
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                        callback.onFailure(cancelled);
+                    }
+
+                    @Override
+                    public void onNotModified() {
+                        SharedPreferences preferences =
+                                PreferenceManager.getDefaultSharedPreferences(mContext);
+                        int hits = preferences.getInt(Constants.PREF_MANIFEST_CACHE_HITS, 0) + 1;
+                        preferences.edit().putInt(Constants.PREF_MANIFEST_CACHE_HITS, hits).apply();
+                        Log.d(TAG, "The cached list is up to date, " + hits + " cache hits");
+                        callback.onNotModified();
+                    }
+                });
+
+        // Only ask for the changes if we still have what they would apply to
+        File metaFile = getMetaFile(mJson);
+        if (mJson.exists() && metaFile.exists()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(metaFile))) {
+                String etag = br.readLine();
+                String lastModified = br.readLine();
+                if (etag != null && !etag.isEmpty()) {
+                    builder.setRequestHeader("If-None-Match", etag);
+                }
+                if (lastModified != null && !lastModified.isEmpty()) {
+                    builder.setRequestHeader("If-Modified-Since", lastModified);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + metaFile, e);
+            }
+        }
+
+        builder.build().start();
+    }
+
+    /**
+     * Replace the cached list with the one just downloaded.
+     */
+    public void commit() {
+        File metaFile = getMetaFile(mJson);
+        if (metaFile.exists() && !metaFile.delete()) {
+            Log.e(TAG, "Could not delete " + metaFile);
+        }
+        if (!mJsonNew.renameTo(mJson)) {
+            Log.e(TAG, "Could not replace " + mJson);
+            ManifestCache.invalidate(mJsonNew);
+            return;
+        }
+        ManifestCache.move(mJsonNew, mJson);
+        if (mETag == null && mLastModified == null) {
+            return;
+        }
+        try (FileOutputStream outputStream = new FileOutputStream(metaFile)) {
+            String meta = (mETag != null ? mETag : "") + "\n" +
+                    (mLastModified != null ? mLastModified : "") + "\n";
+            outputStream.write(meta.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + metaFile, e);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.misc;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import org.exthmui.ota.model.Update;
+import org.exthmui.ota.model.UpdateInfo;
+import org.exthmui.ota.model.UpdatePackage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the updates list one token at a time, without loading the whole document.
+ * The list can either be a single build object, an array of builds or an object
+ * with the array of builds in "response". The incremental packages of a build are
+ * listed in its "incrementals".
+ */
+final class ManifestParser {
+
+    private static final String TAG = "ManifestParser";
+
+    private static final String KEY_BUILDS = "response";
+
+    private ManifestParser() {
+    }
+
+    /**
+     * @param compatibleOnly whether to drop the builds that can't be installed
+     * @return the builds of the list, the invalid ones are skipped
+     */
+    static List<UpdateInfo> parse(File file, boolean compatibleOnly) throws IOException {
+        List<UpdateInfo> updates = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new BufferedInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                readBuilds(reader, updates, compatibleOnly);
+            } else {
+                readRoot(reader, updates, compatibleOnly);
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed updates list", e);
+        }
+        return updates;
+    }
+
+    private static void readRoot(JsonReader reader, List<UpdateInfo> updates,
+            boolean compatibleOnly) throws IOException {
+        // The legacy list is a build object, its fields are read as we go
+        Update update = new Update();
+        boolean isBuild = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (KEY_BUILDS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                readBuilds(reader, updates, compatibleOnly);
+            } else {
+                isBuild |= readField(reader, name, update);
+            }
+        }
+        reader.endObject();
+        if (isBuild) {
+            addUpdate(update, updates, compatibleOnly);
+        }
+    }
+
+    private static void readBuilds(JsonReader reader, List<UpdateInfo> updates,
+            boolean compatibleOnly) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            Update update = new Update();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                readField(reader, reader.nextName(), update);
+            }
+            reader.endObject();
+            addUpdate(update, updates, compatibleOnly);
+        }
+        reader.endArray();
+    }
+
+    /**
+     * @return whether the field belongs to a build
+     */
+    private static boolean readField(JsonReader reader, String name, Update update)
+            throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return false;
+        }
+        switch (name) {
+            case "datetime":
+                update.setTimestamp(reader.nextLong());
+                return true;
+            case "filename":
+                update.setName(reader.nextString());
+                return true;
+            case "id":
+                update.setDownloadId(reader.nextString());
+                return true;
+            case "size":
+                update.setFileSize(reader.nextLong());
+                return true;
+            case "url":
+                update.setDownloadUrl(reader.nextString());
+                return true;
+            case "version":
+                update.setVersion(reader.nextString());
+                return true;
+            case "filehash":
+                update.setHash(reader.nextString());
+                return true;
+            case "filehash_algorithm":
+                update.setHashAlgorithm(reader.nextString());
+                return true;
+            case "whatsNew":
+                update.setWhatsNew(reader.nextString());
+                return true;
+            case "notification":
+                update.setNotificationContent(reader.nextString());
+                return true;
+            case "incrementals":
+                readDeltas(reader, update);
+                return true;
+            default:
+                reader.skipValue();
+                return false;
+        }
+    }
+
+    private static void readDeltas(JsonReader reader, Update update) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            UpdatePackage delta = new UpdatePackage();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "source_datetime":
+                        delta.setSourceTimestamp(reader.nextLong());
+                        break;
+                    case "filename":
+                        delta.setName(reader.nextString());
+                        break;
+                    case "url":
+                        delta.setDownloadUrl(reader.nextString());
+                        break;
+                    case "size":
+                        delta.setFileSize(reader.nextLong());
+                        break;
+                    case "filehash":
+                        delta.setHash(reader.nextString());
+                        break;
+                    case "filehash_algorithm":
+                        delta.setHashAlgorithm(reader.nextString());
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            if (delta.getSourceTimestamp() == 0 || delta.getName() == null ||
+                    delta.getDownloadUrl() == null || delta.getHash() == null) {
+                Log.e(TAG, "Ignoring incomplete incremental package " + delta.getName());
+            } else {
+                update.addDelta(delta);
+            }
+        }
+        reader.endArray();
+    }
+
+    private static void addUpdate(Update update, List<UpdateInfo> updates,
+            boolean compatibleOnly) {
+        if (update.getDownloadId() == null || update.getName() == null ||
+                update.getDownloadUrl() == null || update.getHash() == null ||
+                update.getVersion() == null || update.getTimestamp() == 0) {
+            Log.e(TAG, "Ignoring incomplete update " + update.getDownloadId());
+            return;
+        }
+        if (compatibleOnly && !Utils.isCompatible(update)) {
+            Log.d(TAG, "Ignoring incompatible update " + update.getName());
+            return;
+        }
+        if (update.getWhatsNew() == null) {
+            update.setWhatsNew("");
+        }
+        if (update.getNotificationContent() == null) {
+            update.setNotificationContent("");
+        }
+        updates.add(update);
+    }
+}
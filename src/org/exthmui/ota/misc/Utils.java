@@ -35,33 +35,21 @@ import android.text.format.DateFormat;
 import android.util.Log;
 import android.widget.Toast;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.exthmui.ota.UpdatesDbHelper;
 import org.exthmui.ota.controller.UpdaterService;
 import org.exthmui.ota.model.Update;
 import org.exthmui.ota.model.UpdateBaseInfo;
 import org.exthmui.ota.model.UpdateInfo;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Set;
 
 public class Utils {
 
@@ -88,26 +76,6 @@ public class Utils {
         return new File(context.getCacheDir(), "updates_v3.json");
     }
 
-    // This should really return an UpdateBaseInfo object, but currently this only
-    // used to initialize UpdateInfo objects
-    private static UpdateInfo parseJsonUpdate(JSONObject object) throws JSONException {
-        Update update = new Update();
-        update.setTimestamp(object.getLong("datetime"));
-        update.setName(object.getString("filename"));
-        update.setDownloadId(object.getString("id"));
-        update.setFileSize(object.getLong("size"));
-        update.setDownloadUrl(object.getString("url"));
-        update.setVersion(object.getString("version"));
-        update.setHash(object.getString("filehash"));
-        update.setWhatsNew(object.isNull("whatsNew") ? "" : object.getString("whatsNew"));
-        update.setNotificationContent(object.isNull("notification") ? "" : object.getString("notification"));
-
-        Constants.fileName = object.getString("filename");
-
-        Log.d("Hritik2118", update.getWhatsNew());
-        return update;
-    }
-
     public static String getDeviceCodeName() {
         return SystemProperties.get(Constants.PROP_DEVICE);
     }
@@ -124,29 +92,34 @@ public class Utils {
         return (update.getTimestamp() > SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0));
     }
 
-    public static UpdateInfo parseJson(File file, boolean compatibleOnly)
-            throws IOException, JSONException {
-
-        StringBuilder json = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            for (String line; (line = br.readLine()) != null; ) {
-                json.append(line);
-            }
+    public static List<UpdateInfo> parseJson(File file, boolean compatibleOnly)
+            throws IOException {
+        List<UpdateInfo> parsed = ManifestCache.get(file);
+        if (parsed == null) {
+            // Before reading it, so that changes made meanwhile invalidate the entry
+            long lastModified = file.lastModified();
+            long length = file.length();
+            // Cache all the builds, the callers don't all want the same ones
+            parsed = ManifestParser.parse(file, false);
+            ManifestCache.put(file, lastModified, length, parsed);
         }
 
-        JSONObject obj = new JSONObject(json.toString());
-        try {
-            UpdateInfo update = parseJsonUpdate(obj);
-            if (!compatibleOnly || isCompatible(update)) {
-                return update;
-            } else {
-                Log.d(TAG, "Ignoring incompatible update " + update.getName());
+        // Don't let the callers modify what's cached
+        List<UpdateInfo> updates = new ArrayList<>(parsed.size());
+        UpdateInfo latest = null;
+        for (UpdateInfo update : parsed) {
+            if (compatibleOnly && !isCompatible(update)) {
+                continue;
+            }
+            updates.add(new Update(update));
+            if (latest == null || update.getTimestamp() > latest.getTimestamp()) {
+                latest = update;
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Could not parse update object", e);
         }
-
-        return null;
+        if (latest != null) {
+            Constants.fileName = latest.getName();
+        }
+        return updates;
     }
 
     public static String getServerURL() {
@@ -182,6 +155,16 @@ public class Utils {
         context.startService(intent);
     }
 
+    /**
+     * Install an A/B update straight from the network, without downloading it first.
+     */
+    public static void triggerStreamingUpdate(Context context, String downloadId) {
+        final Intent intent = new Intent(context, UpdaterService.class);
+        intent.setAction(UpdaterService.ACTION_INSTALL_STREAMING);
+        intent.putExtra(UpdaterService.EXTRA_DOWNLOAD_ID, downloadId);
+        context.startService(intent);
+    }
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
@@ -204,91 +187,35 @@ public class Utils {
     }
 
     public static boolean checkForNewUpdates(File oldJson, File newJson)
-            throws IOException, JSONException {
-        UpdateInfo oldUpdate = parseJson(oldJson, true);
-        UpdateInfo newUpdate = parseJson(newJson, true);
-        if (oldUpdate == null || newUpdate == null) {
-            return false;
+            throws IOException {
+        List<UpdateInfo> oldList = parseJson(oldJson, true);
+        List<UpdateInfo> newList = parseJson(newJson, true);
+        Set<String> oldIds = new HashSet<>();
+        for (UpdateInfo update : oldList) {
+            oldIds.add(update.getDownloadId());
         }
-        return !oldUpdate.getDownloadId().equals(newUpdate.getDownloadId());
-    }
-
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
+        for (UpdateInfo update : newList) {
+            if (!oldIds.contains(update.getDownloadId())) {
+                return true;
             }
-            offset += entry.getCompressedSize();
         }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
+        return false;
     }
 
-    private static void removeUncryptFiles(File downloadPath) {
-        File[] uncryptFiles = downloadPath.listFiles(
-                (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT));
-        if (uncryptFiles == null) {
-            return;
+    /**
+     * Get the offset of the data of the given entry within the archive.
+     */
+    public static long getZipEntryOffset(ZipReader zipReader, String entryPath)
+            throws IOException {
+        ZipReader.Entry entry = zipReader.getEntry(entryPath);
+        if (entry == null) {
+            Log.e(TAG, "Entry " + entryPath + " not found");
+            throw new IllegalArgumentException("The given entry was not found");
         }
-        for (File file : uncryptFiles) {
-            file.delete();
-        }
-    }
-
-    public static void cleanupDownloadsDir(Context context) {
-        File downloadPath = getDownloadPath();
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-
-        removeUncryptFiles(downloadPath);
-
-        long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
-        long prevTimestamp = preferences.getLong(Constants.PREF_INSTALL_OLD_TIMESTAMP, 0);
-        String lastUpdatePath = preferences.getString(Constants.PREF_INSTALL_PACKAGE_PATH, null);
-        boolean reinstalling = preferences.getBoolean(Constants.PREF_INSTALL_AGAIN, false);
-        if ((buildTimestamp != prevTimestamp || reinstalling) &&
-                lastUpdatePath != null) {
-            File lastUpdate = new File(lastUpdatePath);
-            if (lastUpdate.exists()) {
-                lastUpdate.delete();
-                // Remove the pref not to delete the file if re-downloaded
-                preferences.edit().remove(Constants.PREF_INSTALL_PACKAGE_PATH).apply();
-            }
-        }
-
-        Log.d(TAG, "Cleaning " + downloadPath);
-        if (!downloadPath.isDirectory()) {
-            return;
-        }
-        File[] files = downloadPath.listFiles();
-        if (files == null) {
-            return;
-        }
-
-        // Ideally the database is empty when we get here
-        UpdatesDbHelper dbHelper = new UpdatesDbHelper(context);
-        List<String> knownPaths = new ArrayList<>();
-        for (UpdateInfo update : dbHelper.getUpdates()) {
-            if (isCompatible(update)){
-                knownPaths.add(update.getFile().getAbsolutePath());
-            }
-        }
-        for (File file : files) {
-            if (!knownPaths.contains(file.getAbsolutePath())) {
-                Log.d(TAG, "Deleting " + file.getAbsolutePath());
-                file.delete();
-            }
+        if (entry.getMethod() != ZipReader.METHOD_STORED) {
+            throw new IllegalArgumentException("The given entry is compressed");
         }
+        return zipReader.getDataOffset(entry);
     }
 
     public static File appendSequentialNumber(final File file) {
@@ -316,16 +243,11 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    private static boolean isABUpdate(ZipFile zipFile) {
-        return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
-                zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
-    }
-
     public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
+        try (ZipReader zipReader = new ZipReader(file)) {
+            return zipReader.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
+                    zipReader.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+        }
     }
 
     public static void addToClipboard(Context context, String label, String text, String toastMessage) {
@@ -368,46 +290,6 @@ public class Utils {
         }
     }
 
-    public static String calculateMD5(File updateFile) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "Exception while getting digest", e);
-            return null;
-        }
-
-        InputStream is;
-        try {
-            is = new FileInputStream(updateFile);
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "Exception while getting FileInputStream", e);
-            return null;
-        }
-
-        byte[] buffer = new byte[8192];
-        int read;
-        try {
-            while ((read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            String output = bigInt.toString(16);
-            // Fill to 32 chars
-            output = String.format("%32s", output).replace(' ', '0');
-            return output;
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to process file for MD5", e);
-        } finally {
-            try {
-                is.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception on closing MD5 input stream", e);
-            }
-        }
-    }
-
     @SuppressLint("DefaultLocale")
     public static String readableFileSize(long size) {
         String units[] = new String[]{"B", "kB", "MB", "GB", "TB", "PB"};
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.misc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal ZIP reader that only looks at the central directory and at the local
+ * headers of the entries actually requested, so that the exact offset of an entry
+ * can be found without walking the whole archive. Supports Zip64 archives.
+ */
+public class ZipReader implements Closeable {
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    // Deflate can't compress better than this
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private final Source mSource;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    public ZipReader(File file) throws IOException {
+        this(new FileSource(file));
+    }
+
+    public ZipReader(Source source) throws IOException {
+        mSource = source;
+        try {
+            readCentralDirectory();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Random access to the bytes of an archive.
+     */
+    public interface Source extends Closeable {
+        long size() throws IOException;
+
+        void read(long position, byte[] b, int off, int len) throws IOException;
+    }
+
+    public static class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                      long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private static class FileSource implements Source {
+        private final RandomAccessFile mFile;
+
+        private FileSource(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mFile.length();
+        }
+
+        @Override
+        public void read(long position, byte[] b, int off, int len) throws IOException {
+            mFile.seek(position);
+            mFile.readFully(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+
+    private byte[] read(long position, int len) throws IOException {
+        byte[] b = new byte[len];
+        mSource.read(position, b, 0, len);
+        return b;
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private static long getInt(byte[] b, int off) {
+        return (getShort(b, off) | (long) getShort(b, off + 2) << 16) & ZIP64_MAGIC;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return getInt(b, off) | getInt(b, off + 4) << 32;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long size = mSource.size();
+        int tailSize = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT_SIZE);
+        long tailOffset = size - tailSize;
+        byte[] tail = read(tailOffset, tailSize);
+
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (getInt(tail, i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + getShort(tail, i + 20) == tailSize) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long entries = getShort(tail, eocd + 10);
+        long cdSize = getInt(tail, eocd + 12);
+        long cdOffset = getInt(tail, eocd + 16);
+
+        int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locator >= 0 && getInt(tail, locator) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+            long zip64EocdOffset = getLong(tail, locator + 8);
+            if (zip64EocdOffset < 0 || zip64EocdOffset > size - ZIP64_EOCD_SIZE) {
+                throw new ZipException("Invalid Zip64 end of central directory offset");
+            }
+            byte[] zip64Eocd = read(zip64EocdOffset, ZIP64_EOCD_SIZE);
+            if (getInt(zip64Eocd, 0) != ZIP64_EOCD_SIGNATURE) {
+                throw new ZipException("Invalid Zip64 end of central directory");
+            }
+            entries = getLong(zip64Eocd, 32);
+            cdSize = getLong(zip64Eocd, 40);
+            cdOffset = getLong(zip64Eocd, 48);
+        }
+
+        // The Zip64 values are unsigned, don't let them overflow
+        if (cdOffset < 0 || cdSize < 0 || cdSize > size - cdOffset ||
+                cdSize > Integer.MAX_VALUE) {
+            throw new ZipException("Invalid central directory");
+        }
+        byte[] cd = read(cdOffset, (int) cdSize);
+        int pos = 0;
+        for (long i = 0; i < entries; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > cd.length ||
+                    getInt(cd, pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry " + i);
+            }
+            int method = getShort(cd, pos + 10);
+            long compressedSize = getInt(cd, pos + 20);
+            long uncompressedSize = getInt(cd, pos + 24);
+            int nameLength = getShort(cd, pos + 28);
+            int extraLength = getShort(cd, pos + 30);
+            int commentLength = getShort(cd, pos + 32);
+            long localHeaderOffset = getInt(cd, pos + 42);
+            int next = pos + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > cd.length) {
+                throw new ZipException("Central directory entry " + i + " is truncated");
+            }
+            String name = new String(cd, pos + CENTRAL_HEADER_SIZE, nameLength,
+                    StandardCharsets.UTF_8);
+
+            // The Zip64 extra field only contains the values that didn't fit
+            int extra = pos + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = getShort(cd, extra);
+                int dataSize = getShort(cd, extra + 2);
+                int dataEnd = extra + 4 + dataSize;
+                if (dataEnd > extraEnd) {
+                    throw new ZipException("Invalid extra field in " + name);
+                }
+                if (id == ZIP64_EXTRA_ID) {
+                    int field = extra + 4;
+                    if (uncompressedSize == ZIP64_MAGIC) {
+                        uncompressedSize = getZip64Value(cd, field, dataEnd, name);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = getZip64Value(cd, field, dataEnd, name);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC) {
+                        localHeaderOffset = getZip64Value(cd, field, dataEnd, name);
+                    }
+                    break;
+                }
+                extra = dataEnd;
+            }
+            if (compressedSize < 0 || uncompressedSize < 0 || localHeaderOffset < 0 ||
+                    localHeaderOffset > size - LOCAL_HEADER_SIZE) {
+                throw new ZipException("Invalid sizes or offset for " + name);
+            }
+
+            mEntries.put(name, new Entry(name, method, compressedSize, uncompressedSize,
+                    localHeaderOffset));
+            pos = next;
+        }
+    }
+
+    private static long getZip64Value(byte[] b, int off, int end, String name)
+            throws ZipException {
+        if (off + 8 > end) {
+            throw new ZipException("Truncated Zip64 extra field in " + name);
+        }
+        return getLong(b, off);
+    }
+
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Get the offset of the data of the given entry within the archive, as stated
+     * by its local header.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        byte[] header = read(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+        if (getInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header for " + entry.mName);
+        }
+        return entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + getShort(header, 26) +
+                getShort(header, 28);
+    }
+
+    /**
+     * Read the content of a small entry.
+     */
+    public byte[] readEntry(Entry entry) throws IOException {
+        if (entry.mSize > Integer.MAX_VALUE || entry.mCompressedSize > Integer.MAX_VALUE) {
+            throw new ZipException(entry.mName + " is too large");
+        }
+        long offset = getDataOffset(entry);
+        if (entry.mCompressedSize > mSource.size() - offset ||
+                (entry.mMethod == METHOD_DEFLATED &&
+                        entry.mSize > (entry.mCompressedSize + 1) * MAX_DEFLATE_RATIO)) {
+            throw new ZipException("Invalid sizes for " + entry.mName);
+        }
+        byte[] data = read(offset, (int) entry.mCompressedSize);
+        switch (entry.mMethod) {
+            case METHOD_STORED:
+                return data;
+            case METHOD_DEFLATED:
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(data);
+                    byte[] content = new byte[(int) entry.mSize];
+                    int count = 0;
+                    while (count < content.length && !inflater.finished()) {
+                        int inflated = inflater.inflate(content, count, content.length - count);
+                        if (inflated == 0 && (inflater.needsInput() ||
+                                inflater.needsDictionary())) {
+                            break;
+                        }
+                        count += inflated;
+                    }
+                    if (count != content.length) {
+                        throw new ZipException("Truncated entry " + entry.mName);
+                    }
+                    return content;
+                } catch (DataFormatException e) {
+                    throw new ZipException("Invalid data for " + entry.mName);
+                } finally {
+                    inflater.end();
+                }
+            default:
+                throw new ZipException("Unsupported compression method " + entry.mMethod);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSource.close();
+    }
+}
@@ -20,45 +20,72 @@ import java.io.File;
 
 public class Update extends UpdateBase implements UpdateInfo {
 
-    private UpdateStatus mStatus = UpdateStatus.UNKNOWN;
+    private final UpdateStateMachine mStateMachine;
     private int mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
     private File mFile;
     private int mProgress;
+    private long mDownloadedBytes;
     private long mEta;
     private long mSpeed;
     private int mInstallProgress;
+    private int mVerifyProgress;
+    private long mInstallPrepareTime;
     private boolean mAvailableOnline;
     private boolean mIsFinalizing;
     private String mHash;
     private String mWhatsNew;
     private String mNotificationContent;
+    private long mSourceTimestamp;
+    private UpdatePackage mFullPackage;
 
     public Update() {
+        mStateMachine = new UpdateStateMachine(UpdateStatus.UNKNOWN);
     }
 
     public Update(UpdateInfo update) {
         super(update);
-        mStatus = update.getStatus();
+        mStateMachine = new UpdateStateMachine(update.getStatus());
         mPersistentStatus = update.getPersistentStatus();
         mFile = update.getFile();
         mProgress = update.getProgress();
+        mDownloadedBytes = update.getDownloadedBytes();
         mEta = update.getEta();
         mSpeed = update.getSpeed();
         mInstallProgress = update.getInstallProgress();
+        mVerifyProgress = update.getVerifyProgress();
+        mInstallPrepareTime = update.getInstallPrepareTime();
         mAvailableOnline = update.getAvailableOnline();
         mIsFinalizing = update.getFinalizing();
         mHash = update.getHash();
         mNotificationContent = update.getNotificationContent();
         mWhatsNew = update.getWhatsNew();
+        mSourceTimestamp = update.getSourceTimestamp();
+        mFullPackage = update.getFullPackage();
     }
 
     @Override
     public UpdateStatus getStatus() {
-        return mStatus;
+        return mStateMachine.getStatus();
     }
 
-    public void setStatus(UpdateStatus status) {
-        mStatus = status;
+    /**
+     * @return false if the update can't go from its current status to the given one
+     */
+    public boolean setStatus(UpdateStatus status) {
+        return mStateMachine.moveTo(status);
+    }
+
+    /**
+     * Change the status only if it's still the expected one.
+     *
+     * @return whether the status was changed
+     */
+    public boolean compareAndSetStatus(UpdateStatus expect, UpdateStatus status) {
+        return mStateMachine.compareAndMoveTo(expect, status);
+    }
+
+    public UpdateStateMachine getStateMachine() {
+        return mStateMachine;
     }
 
     @Override
@@ -88,6 +115,15 @@ public class Update extends UpdateBase implements UpdateInfo {
         mProgress = progress;
     }
 
+    @Override
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    public void setDownloadedBytes(long downloadedBytes) {
+        mDownloadedBytes = downloadedBytes;
+    }
+
     @Override
     public long getEta() {
         return mEta;
@@ -115,6 +151,24 @@ public class Update extends UpdateBase implements UpdateInfo {
         mInstallProgress = progress;
     }
 
+    @Override
+    public int getVerifyProgress() {
+        return mVerifyProgress;
+    }
+
+    public void setVerifyProgress(int progress) {
+        mVerifyProgress = progress;
+    }
+
+    @Override
+    public long getInstallPrepareTime() {
+        return mInstallPrepareTime;
+    }
+
+    public void setInstallPrepareTime(long installPrepareTime) {
+        mInstallPrepareTime = installPrepareTime;
+    }
+
     @Override
     public boolean getAvailableOnline() {
         return mAvailableOnline;
@@ -159,4 +213,67 @@ public class Update extends UpdateBase implements UpdateInfo {
     public void setNotificationContent(String notificationContent) {
         mNotificationContent = notificationContent;
     }
+
+    @Override
+    public long getSourceTimestamp() {
+        return mSourceTimestamp;
+    }
+
+    public void setSourceTimestamp(long sourceTimestamp) {
+        mSourceTimestamp = sourceTimestamp;
+    }
+
+    @Override
+    public UpdatePackage getFullPackage() {
+        return mFullPackage;
+    }
+
+    public void setFullPackage(UpdatePackage fullPackage) {
+        mFullPackage = fullPackage;
+    }
+
+    @Override
+    public long getSavedBytes() {
+        return mFullPackage != null ? mFullPackage.getFileSize() - getFileSize() : 0;
+    }
+
+    /**
+     * Use the incremental package made from the given build instead of the full one.
+     *
+     * @return false if there's no such package
+     */
+    public boolean useDelta(long sourceTimestamp) {
+        UpdatePackage delta = getDeltas().get(sourceTimestamp);
+        if (delta == null || (mSourceTimestamp != 0 && mFullPackage == null)) {
+            return false;
+        }
+        if (mFullPackage == null) {
+            mFullPackage = new UpdatePackage(this);
+        }
+        setPackage(delta);
+        return true;
+    }
+
+    /**
+     * Go back to the full package after useDelta().
+     *
+     * @return false if the full package isn't known
+     */
+    public boolean useFullPackage() {
+        if (mFullPackage == null) {
+            return false;
+        }
+        setPackage(mFullPackage);
+        mFullPackage = null;
+        return true;
+    }
+
+    private void setPackage(UpdatePackage updatePackage) {
+        mSourceTimestamp = updatePackage.getSourceTimestamp();
+        setName(updatePackage.getName());
+        setDownloadUrl(updatePackage.getDownloadUrl());
+        setFileSize(updatePackage.getFileSize());
+        setHash(updatePackage.getHash());
+        setHashAlgorithm(updatePackage.getHashAlgorithm());
+    }
 }
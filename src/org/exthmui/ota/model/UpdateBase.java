@@ -16,6 +16,9 @@
  */
 package org.exthmui.ota.model;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class UpdateBase implements UpdateBaseInfo {
 
     private String mName;
@@ -25,8 +28,10 @@ public class UpdateBase implements UpdateBaseInfo {
     private String mVersion;
     private long mFileSize;
     private String mHash;
+    private String mHashAlgorithm;
     private String mWhatsNew;
     private String mNotificationContent;
+    private Map<Long, UpdatePackage> mDeltas = new HashMap<>();
 
     UpdateBase() {
     }
@@ -38,6 +43,8 @@ public class UpdateBase implements UpdateBaseInfo {
         mTimestamp = update.getTimestamp();
         mVersion = update.getVersion();
         mFileSize = update.getFileSize();
+        mHashAlgorithm = update.getHashAlgorithm();
+        mDeltas = new HashMap<>(update.getDeltas());
     }
 
     @Override
@@ -103,6 +110,15 @@ public class UpdateBase implements UpdateBaseInfo {
         mHash = hash;
     }
 
+    @Override
+    public String getHashAlgorithm() {
+        return mHashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        mHashAlgorithm = hashAlgorithm;
+    }
+
     @Override
     public String getWhatsNew() {
         return mWhatsNew;
@@ -120,4 +136,13 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setNotificationContent(String notificationContent) {
         mNotificationContent = notificationContent;
     }
+
+    @Override
+    public Map<Long, UpdatePackage> getDeltas() {
+        return mDeltas;
+    }
+
+    public void addDelta(UpdatePackage delta) {
+        mDeltas.put(delta.getSourceTimestamp(), delta);
+    }
 }
@@ -16,6 +16,8 @@
  */
 package org.exthmui.ota.model;
 
+import java.util.Map;
+
 public interface UpdateBaseInfo {
     String getName();
 
@@ -31,7 +33,14 @@ public interface UpdateBaseInfo {
 
     String getHash();
 
+    String getHashAlgorithm();
+
     String getWhatsNew();
 
     String getNotificationContent();
+
+    /**
+     * @return the incremental packages of this update, by the timestamp of their source build
+     */
+    Map<Long, UpdatePackage> getDeltas();
 }
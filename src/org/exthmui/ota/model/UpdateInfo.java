@@ -29,12 +29,21 @@ public interface UpdateInfo extends UpdateBaseInfo {
 
     int getProgress();
 
+    long getDownloadedBytes();
+
     long getEta();
 
     long getSpeed();
 
     int getInstallProgress();
 
+    int getVerifyProgress();
+
+    /**
+     * @return how long it took to prepare the package for the installation, in milliseconds
+     */
+    long getInstallPrepareTime();
+
     boolean getAvailableOnline();
 
     boolean getFinalizing();
@@ -42,4 +51,19 @@ public interface UpdateInfo extends UpdateBaseInfo {
     String getWhatsNew();
 
     String getNotificationContent();
+
+    /**
+     * @return the timestamp of the build the package applies to, 0 for a full package
+     */
+    long getSourceTimestamp();
+
+    /**
+     * @return the full package, if an incremental one is used instead
+     */
+    UpdatePackage getFullPackage();
+
+    /**
+     * @return how much smaller the package is than the full one
+     */
+    long getSavedBytes();
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.model;
+
+/**
+ * A package an update can be installed from. Incremental packages only apply
+ * on top of the build they were made from, identified by its timestamp.
+ */
+public class UpdatePackage {
+
+    private long mSourceTimestamp;
+    private String mName;
+    private String mDownloadUrl;
+    private long mFileSize;
+    private String mHash;
+    private String mHashAlgorithm;
+
+    public UpdatePackage() {
+    }
+
+    public UpdatePackage(UpdatePackage updatePackage) {
+        mSourceTimestamp = updatePackage.getSourceTimestamp();
+        mName = updatePackage.getName();
+        mDownloadUrl = updatePackage.getDownloadUrl();
+        mFileSize = updatePackage.getFileSize();
+        mHash = updatePackage.getHash();
+        mHashAlgorithm = updatePackage.getHashAlgorithm();
+    }
+
+    /**
+     * The full package of the given update.
+     */
+    public UpdatePackage(UpdateBaseInfo update) {
+        mName = update.getName();
+        mDownloadUrl = update.getDownloadUrl();
+        mFileSize = update.getFileSize();
+        mHash = update.getHash();
+        mHashAlgorithm = update.getHashAlgorithm();
+    }
+
+    /**
+     * @return the timestamp of the build this package applies to, 0 for a full package
+     */
+    public long getSourceTimestamp() {
+        return mSourceTimestamp;
+    }
+
+    public void setSourceTimestamp(long sourceTimestamp) {
+        mSourceTimestamp = sourceTimestamp;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setName(String name) {
+        mName = name;
+    }
+
+    public String getDownloadUrl() {
+        return mDownloadUrl;
+    }
+
+    public void setDownloadUrl(String downloadUrl) {
+        mDownloadUrl = downloadUrl;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        mFileSize = fileSize;
+    }
+
+    public String getHash() {
+        return mHash;
+    }
+
+    public void setHash(String hash) {
+        mHash = hash;
+    }
+
+    public String getHashAlgorithm() {
+        return mHashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        mHashAlgorithm = hashAlgorithm;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.model;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.exthmui.ota.model.UpdateStatus.DELETED;
+import static org.exthmui.ota.model.UpdateStatus.DOWNLOADED;
+import static org.exthmui.ota.model.UpdateStatus.DOWNLOADING;
+import static org.exthmui.ota.model.UpdateStatus.INSTALLATION_CANCELLED;
+import static org.exthmui.ota.model.UpdateStatus.INSTALLATION_FAILED;
+import static org.exthmui.ota.model.UpdateStatus.INSTALLATION_SUSPENDED;
+import static org.exthmui.ota.model.UpdateStatus.INSTALLED;
+import static org.exthmui.ota.model.UpdateStatus.INSTALLING;
+import static org.exthmui.ota.model.UpdateStatus.PAUSED;
+import static org.exthmui.ota.model.UpdateStatus.PAUSED_ERROR;
+import static org.exthmui.ota.model.UpdateStatus.STARTING;
+import static org.exthmui.ota.model.UpdateStatus.UNKNOWN;
+import static org.exthmui.ota.model.UpdateStatus.VERIFICATION_FAILED;
+import static org.exthmui.ota.model.UpdateStatus.VERIFIED;
+import static org.exthmui.ota.model.UpdateStatus.VERIFYING;
+
+/**
+ * The status of an update. Only the transitions listed here are allowed, the others
+ * are logged and ignored. The time spent in each status is recorded, so that slow
+ * or stuck steps can be found.
+ */
+public class UpdateStateMachine {
+
+    private static final String TAG = "UpdateStateMachine";
+
+    private static final Map<UpdateStatus, Set<UpdateStatus>> TRANSITIONS =
+            new EnumMap<>(UpdateStatus.class);
+
+    static {
+        // Updates restored after a reboot are UNKNOWN or PAUSED, update_engine can
+        // report the installation they were going through
+        allow(UNKNOWN, STARTING, PAUSED, PAUSED_ERROR, VERIFYING, DELETED,
+                INSTALLING, INSTALLED, INSTALLATION_FAILED);
+        // Streamed installations start without downloading anything
+        allow(STARTING, DOWNLOADING, VERIFYING, PAUSED, PAUSED_ERROR,
+                INSTALLING, INSTALLATION_FAILED);
+        allow(DOWNLOADING, VERIFYING, PAUSED, PAUSED_ERROR);
+        allow(DOWNLOADED, VERIFYING, DELETED, INSTALLING, INSTALLATION_FAILED);
+        allow(PAUSED, STARTING, PAUSED_ERROR, VERIFYING, DELETED,
+                INSTALLING, INSTALLED, INSTALLATION_FAILED);
+        allow(PAUSED_ERROR, STARTING, VERIFYING, DELETED);
+        allow(DELETED, STARTING, PAUSED_ERROR);
+        allow(VERIFYING, VERIFIED, VERIFICATION_FAILED);
+        // An incremental package that doesn't apply is replaced by the full one
+        allow(VERIFIED, STARTING, PAUSED_ERROR, DELETED,
+                INSTALLING, INSTALLED, INSTALLATION_FAILED);
+        allow(VERIFICATION_FAILED, STARTING, PAUSED_ERROR, DELETED);
+        allow(INSTALLING, INSTALLED, INSTALLATION_FAILED, INSTALLATION_CANCELLED,
+                INSTALLATION_SUSPENDED, STARTING, PAUSED_ERROR);
+        allow(INSTALLED, DELETED);
+        // A package linked for uncrypt has to be verified again
+        allow(INSTALLATION_FAILED, STARTING, PAUSED_ERROR, VERIFYING, DELETED, INSTALLING);
+        allow(INSTALLATION_CANCELLED, STARTING, PAUSED_ERROR, VERIFYING, DELETED,
+                INSTALLING, INSTALLATION_FAILED);
+        allow(INSTALLATION_SUSPENDED, INSTALLING, INSTALLATION_CANCELLED,
+                INSTALLATION_FAILED);
+    }
+
+    private static void allow(UpdateStatus from, UpdateStatus first, UpdateStatus... rest) {
+        TRANSITIONS.put(from, EnumSet.of(first, rest));
+    }
+
+    public static boolean isAllowed(UpdateStatus from, UpdateStatus to) {
+        return from == to || TRANSITIONS.get(from).contains(to);
+    }
+
+    private volatile UpdateStatus mStatus;
+    private long mEnteredAt;
+    private final long[] mTimeInStatus = new long[UpdateStatus.values().length];
+    private int mRejected;
+
+    UpdateStateMachine(UpdateStatus status) {
+        mStatus = status;
+        mEnteredAt = SystemClock.elapsedRealtime();
+    }
+
+    UpdateStatus getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return false if the transition isn't allowed
+     */
+    synchronized boolean moveTo(UpdateStatus status) {
+        if (!isAllowed(mStatus, status)) {
+            mRejected++;
+            Log.e(TAG, "Illegal transition from " + mStatus + " to " + status);
+            return false;
+        }
+        if (mStatus != status) {
+            long now = SystemClock.elapsedRealtime();
+            mTimeInStatus[mStatus.ordinal()] += now - mEnteredAt;
+            mEnteredAt = now;
+            mStatus = status;
+        }
+        return true;
+    }
+
+    synchronized boolean compareAndMoveTo(UpdateStatus expect, UpdateStatus status) {
+        return mStatus == expect && moveTo(status);
+    }
+
+    /**
+     * @return the total time spent in the given status, in milliseconds
+     */
+    public synchronized long getTimeInStatus(UpdateStatus status) {
+        long time = mTimeInStatus[status.ordinal()];
+        if (mStatus == status) {
+            time += SystemClock.elapsedRealtime() - mEnteredAt;
+        }
+        return time;
+    }
+
+    /**
+     * @return the time spent in the current status, in milliseconds
+     */
+    public synchronized long getTimeInCurrentStatus() {
+        return SystemClock.elapsedRealtime() - mEnteredAt;
+    }
+
+    /**
+     * @return the number of transitions that were not allowed
+     */
+    public synchronized int getRejectedCount() {
+        return mRejected;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.exthmui.ota.model.Update;
+import org.exthmui.ota.model.UpdateStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class UpdatesDbHelperTest {
+
+    private static final String DATABASE_NAME = "updates.db";
+
+    // The schema of the version 4 database, as it was shipped
+    private static final String V4_CREATE_ENTRIES =
+            "CREATE TABLE updates (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    "status INTEGER," +
+                    "path TEXT," +
+                    "download_id TEXT NOT NULL UNIQUE," +
+                    "timestamp INTEGER," +
+                    "version TEXT," +
+                    "size INTEGER," +
+                    "hash TEXT)";
+
+    private Context mContext;
+    private UpdatesDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+    }
+
+    @After
+    public void tearDown() {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion4KeepsRows() {
+        createFixture(4);
+        insertFixtureRow("verified", UpdateStatus.Persistent.VERIFIED, 2000);
+        insertFixtureRow("incomplete", UpdateStatus.Persistent.INCOMPLETE, 1000);
+
+        mDbHelper = new UpdatesDbHelper(mContext);
+        List<Update> updates = mDbHelper.getUpdates();
+        assertEquals(2, updates.size());
+
+        // Sorted by timestamp, newest first
+        Update verified = updates.get(0);
+        assertEquals("verified", verified.getDownloadId());
+        assertEquals(UpdateStatus.Persistent.VERIFIED, verified.getPersistentStatus());
+        assertEquals(2000, verified.getTimestamp());
+        assertEquals("1.0", verified.getVersion());
+        assertEquals(1 << 20, verified.getFileSize());
+        assertEquals("0123456789abcdef", verified.getHash());
+        assertEquals(fixtureFile("verified"), verified.getFile());
+
+        // The columns added since have their defaults
+        assertEquals(0, verified.getSourceTimestamp());
+        assertEquals(0, verified.getDownloadedBytes());
+        assertNull(verified.getHashAlgorithm());
+        assertNull(verified.getDownloadUrl());
+
+        Update incomplete = mDbHelper.getUpdate("incomplete");
+        assertNotNull(incomplete);
+        assertEquals(UpdateStatus.Persistent.INCOMPLETE, incomplete.getPersistentStatus());
+        assertEquals(1, mDbHelper.getUpdates(UpdateStatus.Persistent.INCOMPLETE).size());
+    }
+
+    @Test
+    public void upgradeFromVersion4CreatesIndices() {
+        createFixture(4);
+        mDbHelper = new UpdatesDbHelper(mContext);
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Set<String> indices = new HashSet<>();
+        try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master " +
+                "WHERE type = 'index' AND tbl_name = 'updates'", null)) {
+            while (cursor.moveToNext()) {
+                indices.add(cursor.getString(0));
+            }
+        }
+        assertTrue(indices.toString(), indices.contains("updates_timestamp"));
+        assertTrue(indices.toString(), indices.contains("updates_status_timestamp"));
+    }
+
+    @Test
+    public void upgradedDatabaseStoresNewColumns() {
+        createFixture(4);
+        insertFixtureRow("old", UpdateStatus.Persistent.VERIFIED, 1000);
+        mDbHelper = new UpdatesDbHelper(mContext);
+
+        Update update = mDbHelper.getUpdate("old");
+        update.setSourceTimestamp(500);
+        update.setDownloadedBytes(4096);
+        update.setHashAlgorithm("SHA-256");
+        update.setDownloadUrl("https://example.org/old.zip");
+        mDbHelper.addUpdateWithOnConflict(update, SQLiteDatabase.CONFLICT_REPLACE);
+
+        Update stored = mDbHelper.getUpdate("old");
+        assertEquals(500, stored.getSourceTimestamp());
+        assertEquals(4096, stored.getDownloadedBytes());
+        assertEquals("SHA-256", stored.getHashAlgorithm());
+        assertEquals("https://example.org/old.zip", stored.getDownloadUrl());
+        assertEquals(1, mDbHelper.getUpdates().size());
+    }
+
+    @Test
+    public void upgradeFromOlderVersionsRecreatesTable() {
+        createFixture(3);
+        insertFixtureRow("ancient", UpdateStatus.Persistent.VERIFIED, 1000);
+
+        mDbHelper = new UpdatesDbHelper(mContext);
+        assertTrue(mDbHelper.getUpdates().isEmpty());
+    }
+
+    /**
+     * Create the updates database with the version 4 schema, labelled with the given
+     * version. The older schemas don't matter, their rows are dropped anyway.
+     */
+    private void createFixture(int version) {
+        File path = mContext.getDatabasePath(DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        try (SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null)) {
+            db.execSQL(V4_CREATE_ENTRIES);
+            db.setVersion(version);
+        }
+    }
+
+    private void insertFixtureRow(String downloadId, int status, long timestamp) {
+        File path = mContext.getDatabasePath(DATABASE_NAME);
+        try (SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null)) {
+            db.execSQL("INSERT INTO updates " +
+                            "(status, path, download_id, timestamp, version, size, hash) " +
+                            "VALUES (?, ?, ?, ?, ?, ?, ?)",
+                    new Object[]{status, fixtureFile(downloadId).getAbsolutePath(),
+                            downloadId, timestamp, "1.0", 1 << 20, "0123456789abcdef"});
+        }
+    }
+
+    private File fixtureFile(String downloadId) {
+        return new File(mContext.getCacheDir(), downloadId + ".zip");
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.controller;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.exthmui.ota.UpdatesDbHelper;
+import org.exthmui.ota.model.Update;
+import org.exthmui.ota.model.UpdateStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class UpdatesDbWriterTest {
+
+    private static final int THREADS = 8;
+    private static final int UPDATES_PER_THREAD = 16;
+    private static final int CHANGES_PER_THREAD = 2000;
+
+    private Context mContext;
+    private UpdatesDbHelper mDbHelper;
+    private UpdatesDbWriter mWriter;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mDbHelper = new UpdatesDbHelper(mContext);
+        mWriter = new UpdatesDbWriter(mDbHelper);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    @Test
+    public void lastChangeWins() throws Exception {
+        Update update = newUpdate("single");
+        mWriter.addUpdate(update);
+        update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
+        mWriter.changeUpdateStatus(update);
+        update.setDownloadedBytes(42);
+        mWriter.checkpoint(update);
+        waitForWrites();
+
+        Update stored = mDbHelper.getUpdate("single");
+        assertNotNull(stored);
+        assertEquals(UpdateStatus.Persistent.INCOMPLETE, stored.getPersistentStatus());
+        assertEquals(42, stored.getDownloadedBytes());
+    }
+
+    @Test
+    public void changesAfterRemovalAreDropped() throws Exception {
+        Update update = newUpdate("removed");
+        mWriter.addUpdate(update);
+        mWriter.removeUpdate("removed");
+        update.setDownloadedBytes(42);
+        mWriter.checkpoint(update);
+        mWriter.changeUpdateStatus(update);
+        waitForWrites();
+
+        assertNull(mDbHelper.getUpdate("removed"));
+    }
+
+    /**
+     * Each thread starts, pauses, resumes and deletes its own updates while the
+     * others do the same, the database must end up with the last state of each.
+     */
+    @Test
+    public void concurrentChanges() throws Exception {
+        List<List<Update>> updates = new ArrayList<>();
+        List<boolean[]> removed = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            List<Update> threadUpdates = new ArrayList<>();
+            for (int j = 0; j < UPDATES_PER_THREAD; j++) {
+                Update update = newUpdate("update-" + i + "-" + j);
+                mWriter.addUpdate(update);
+                threadUpdates.add(update);
+            }
+            updates.add(threadUpdates);
+            removed.add(new boolean[UPDATES_PER_THREAD]);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            List<Update> threadUpdates = updates.get(i);
+            boolean[] threadRemoved = removed.get(i);
+            Random random = new Random(i);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < CHANGES_PER_THREAD; j++) {
+                        int index = random.nextInt(UPDATES_PER_THREAD);
+                        change(threadUpdates.get(index), threadRemoved, index, random);
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.MINUTES.toMillis(1));
+            assertFalse(thread.isAlive());
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        waitForWrites();
+
+        int stored = 0;
+        for (int i = 0; i < THREADS; i++) {
+            for (int j = 0; j < UPDATES_PER_THREAD; j++) {
+                Update expected = updates.get(i).get(j);
+                Update actual = mDbHelper.getUpdate(expected.getDownloadId());
+                if (removed.get(i)[j]) {
+                    assertNull(expected.getDownloadId(), actual);
+                    continue;
+                }
+                assertNotNull(expected.getDownloadId(), actual);
+                assertEquals(expected.getDownloadId(), expected.getPersistentStatus(),
+                        actual.getPersistentStatus());
+                assertEquals(expected.getDownloadId(), expected.getDownloadedBytes(),
+                        actual.getDownloadedBytes());
+                stored++;
+            }
+        }
+        assertEquals(stored, mDbHelper.getUpdates().size());
+    }
+
+    private void change(Update update, boolean[] removed, int index, Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                // Start
+                update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
+                if (removed[index]) {
+                    mWriter.addUpdate(update);
+                    removed[index] = false;
+                } else {
+                    mWriter.changeUpdateStatus(update);
+                }
+                break;
+            case 1:
+            case 2:
+                // Download progress, pausing keeps it
+                update.setDownloadedBytes(update.getDownloadedBytes() + random.nextInt(4096));
+                mWriter.checkpoint(update);
+                break;
+            case 3:
+                // Verified
+                update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+                mWriter.changeUpdateStatus(update);
+                break;
+            case 4:
+                // Delete
+                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                update.setDownloadedBytes(0);
+                mWriter.removeUpdate(update.getDownloadId());
+                removed[index] = true;
+                break;
+        }
+    }
+
+    private void waitForWrites() throws Exception {
+        // The flush of the last change was queued before this, the lane runs in order
+        BackgroundExecutor.DB.submit(() -> { }).get(1, TimeUnit.MINUTES);
+    }
+
+    private Update newUpdate(String downloadId) {
+        Update update = new Update();
+        update.setDownloadId(downloadId);
+        update.setName(downloadId + ".zip");
+        update.setFile(new File(mContext.getCacheDir(), downloadId + ".zip"));
+        update.setTimestamp(1);
+        update.setVersion("1.0");
+        update.setFileSize(1 << 20);
+        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        return update;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ * Copyright (C) 2019 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.exthmui.ota.model;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class UpdateStateMachineTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 2000;
+
+    @Test
+    public void rejectsIllegalTransitions() {
+        Update update = new Update();
+        assertTrue(update.setStatus(UpdateStatus.STARTING));
+        assertTrue(update.setStatus(UpdateStatus.DOWNLOADING));
+        assertFalse(update.setStatus(UpdateStatus.INSTALLED));
+        assertEquals(UpdateStatus.DOWNLOADING, update.getStatus());
+        assertEquals(1, update.getStateMachine().getRejectedCount());
+    }
+
+    /**
+     * Start, pause, resume and delete the same update from several threads at once:
+     * the status never goes through a transition that isn't allowed, and of the
+     * calls racing from the same status exactly one wins.
+     */
+    @Test
+    public void concurrentTransitions() throws Exception {
+        Update update = new Update();
+        assertTrue(update.setStatus(UpdateStatus.PAUSED));
+
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        AtomicInteger winners = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            int id = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int round = 0; round < ROUNDS; round++) {
+                        barrier.await(1, TimeUnit.MINUTES);
+                        // Half of the threads resume the download, the others delete it
+                        UpdateStatus target = id % 2 == 0 ?
+                                UpdateStatus.STARTING : UpdateStatus.DELETED;
+                        if (update.compareAndSetStatus(UpdateStatus.PAUSED, target)) {
+                            winners.incrementAndGet();
+                        }
+                        barrier.await(1, TimeUnit.MINUTES);
+                        if (id == 0) {
+                            // Download and pause again for the next round
+                            if (update.getStatus() == UpdateStatus.DELETED) {
+                                assertTrue(update.setStatus(UpdateStatus.STARTING));
+                            }
+                            assertTrue(update.setStatus(UpdateStatus.DOWNLOADING));
+                            assertTrue(update.setStatus(UpdateStatus.PAUSED));
+                        } else {
+                            // Pause while the download is being resumed
+                            update.compareAndSetStatus(UpdateStatus.DOWNLOADING,
+                                    UpdateStatus.PAUSED);
+                        }
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                    barrier.reset();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.MINUTES.toMillis(2));
+            assertFalse(thread.isAlive());
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(ROUNDS, winners.get());
+        assertEquals(0, update.getStateMachine().getRejectedCount());
+    }
+}